@@ -0,0 +1,213 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A shared dictionary of category root paths, used to represent the
+ * categories assigned to an event as a compact bit set.
+ * <p>
+ * Each category root path is interned into an integer id once. A categories
+ * string (as read from the property {@link EventEntry#PROPERTY_CATEGORIES})
+ * is then parsed once into a bit set holding the id of each of its
+ * categories, and the bit set is shared by all events assigned the same
+ * categories. This turns category filtering into bit set operations, see
+ * {@link #matches(java.util.BitSet, CategoryDictionary.Filter, int)}.
+ * <p>
+ * Only categories read from events are interned. Filter categories (which
+ * typically come from request parameters) are looked up, never interned, so
+ * that the dictionary cannot grow from requests. Consequently, a filter must
+ * be created <em>after</em> the categories of the events it is evaluated
+ * against have been parsed.
+ * <p>
+ * The bit sets returned by this class are shared, and must not be modified.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class CategoryDictionary {
+
+    /** The maximum number of cached categories strings. */
+    public static final int MAX_SETS = 10000;
+    /** The empty bit set, used for events with no categories. */
+    private static final BitSet EMPTY = new BitSet(0);
+
+    /** The category ids, keyed by category root path. */
+    private static final Map<String, Integer> IDS = new ConcurrentHashMap<String, Integer>();
+    /** The category root paths, by id. */
+    private static final List<String> PATHS = new ArrayList<String>();
+    /** The parsed categories strings. */
+    private static final Map<String, BitSet> SETS = new ConcurrentHashMap<String, BitSet>();
+
+    /**
+     * Gets the bit set of the categories in the given categories string.
+     * <p>
+     * The categories string is split on the pipe character if it contains
+     * any, otherwise on commas. (OpenCms changed the separator for property
+     * lists somewhere around version 9.0.)
+     *
+     * @param categoriesString The categories string, possibly empty or null.
+     * @return The bit set of the categories in the given categories string (shared - do not modify).
+     */
+    public static BitSet getCategories(String categoriesString) {
+        if (categoriesString == null || categoriesString.trim().isEmpty()) {
+            return EMPTY;
+        }
+        BitSet categories = SETS.get(categoriesString);
+        if (categories == null) {
+            categories = new BitSet();
+            char separator = categoriesString.indexOf('|') >= 0 ? '|' : ',';
+            int from = 0;
+            while (from <= categoriesString.length()) {
+                int to = categoriesString.indexOf(separator, from);
+                if (to < 0) {
+                    to = categoriesString.length();
+                }
+                if (to > from) {
+                    categories.set(intern(categoriesString.substring(from, to)));
+                }
+                from = to + 1;
+            }
+            if (SETS.size() >= MAX_SETS) {
+                SETS.clear(); // Simple bound - the sets are cheap to re-create
+            }
+            SETS.put(categoriesString, categories);
+        }
+        return categories;
+    }
+
+    /**
+     * Gets the filter for the given filter categories, for use with
+     * {@link #matches(java.util.BitSet, CategoryDictionary.Filter, int)}.
+     * <p>
+     * The filter categories are looked up only. A filter category that is
+     * not in the dictionary is not assigned to any parsed categories string,
+     * so it is only recorded as unknown.
+     *
+     * @param filterMatchCategories The root paths to the categories to match against, possibly empty or null.
+     * @return The filter for the given filter categories, or null if there are no filter categories.
+     */
+    public static Filter getFilter(List<String> filterMatchCategories) {
+        if (filterMatchCategories == null || filterMatchCategories.isEmpty()) {
+            return null;
+        }
+        BitSet ids = new BitSet();
+        boolean unknown = false;
+        for (String filterCategory : filterMatchCategories) {
+            if (filterCategory != null) {
+                Integer id = IDS.get(filterCategory);
+                if (id == null) {
+                    unknown = true;
+                } else {
+                    ids.set(id.intValue());
+                }
+            }
+        }
+        return new Filter(ids, unknown);
+    }
+
+    /**
+     * Determines if the given assigned categories match the given filter.
+     * <p>
+     * In inclusive mode, this is the case if they have at least one category
+     * in common. In exclusive mode, the assigned categories must include all
+     * filter categories, which is impossible if any filter category is 
+     * unknown. If there is no filter, everything matches.
+     *
+     * @param assigned The bit set of the assigned categories.
+     * @param filter The filter, as returned by {@link #getFilter(java.util.List)}, or null if none.
+     * @param filterMode The filter mode, one of {@link ResourceCategoriesFilter#MODE_EXCLUSIVE} or {@link ResourceCategoriesFilter#MODE_INCLUSIVE}.
+     * @return True if the given assigned categories match the given filter, false if not.
+     */
+    public static boolean matches(BitSet assigned, Filter filter, int filterMode) {
+        if (filter == null) {
+            return true;
+        }
+        if (filterMode == ResourceCategoriesFilter.MODE_INCLUSIVE) {
+            return assigned.intersects(filter.ids); // Unknown categories can't match
+        }
+        if (filter.unknown) {
+            return false;
+        }
+        BitSet ids = filter.ids;
+        for (int i = ids.nextSetBit(0); i >= 0; i = ids.nextSetBit(i + 1)) {
+            if (!assigned.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the root path of the category with the given id.
+     *
+     * @param id The category id.
+     * @return The root path of the category with the given id, or null if none.
+     */
+    public static String getPath(int id) {
+        synchronized (PATHS) {
+            return id >= 0 && id < PATHS.size() ? PATHS.get(id) : null;
+        }
+    }
+
+    /**
+     * Gets the id of the given category, assigning a new id if necessary.
+     *
+     * @param categoryPath The category root path.
+     * @return The id of the given category.
+     */
+    private static int intern(String categoryPath) {
+        Integer id = IDS.get(categoryPath);
+        if (id == null) {
+            synchronized (PATHS) {
+                id = IDS.get(categoryPath);
+                if (id == null) {
+                    id = Integer.valueOf(PATHS.size());
+                    PATHS.add(categoryPath);
+                    IDS.put(categoryPath, id);
+                }
+            }
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Gets the number of interned categories.
+     *
+     * @return The number of interned categories.
+     */
+    public static int size() {
+        return IDS.size();
+    }
+
+    /**
+     * A category filter, as created by {@link CategoryDictionary#getFilter(java.util.List)}.
+     */
+    public static final class Filter {
+        /** The ids of the known filter categories. */
+        private final BitSet ids;
+        /** Flag indicating whether or not any filter category is unknown. */
+        private final boolean unknown;
+
+        /**
+         * Creates a new filter.
+         *
+         * @param ids The ids of the known filter categories.
+         * @param unknown Whether or not any filter category is unknown.
+         */
+        private Filter(BitSet ids, boolean unknown) {
+            this.ids = ids;
+            this.unknown = unknown;
+        }
+
+        /**
+         * Gets the flag indicating whether or not any filter category is
+         * unknown to the dictionary.
+         *
+         * @return True if any filter category is unknown, false if not.
+         */
+        public boolean hasUnknown() { return unknown; }
+    }
+}
@@ -9,13 +9,10 @@ import org.opencms.file.CmsResourceFilter;
 import org.opencms.file.types.I_CmsResourceType;
 import org.opencms.loader.CmsLoaderException;
 import org.opencms.main.CmsException;
-import org.opencms.main.CmsIllegalArgumentException;
-import org.opencms.main.CmsRuntimeException;
 import org.opencms.main.OpenCms;
 import org.opencms.util.CmsStringUtil;
 
 import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -96,6 +93,12 @@ import org.apache.commons.logging.LogFactory;
  * means that a resource must belong to ALL of the categories to be collected.
  * </li>
  * <li>
+ * <b>parallel</b><br/>
+ * The value (true or false) determines if the collector may process result 
+ * candidates in parallel, using multiple threads. Supported only when 
+ * collecting events, see {@link TimeRangeCategoryEventCollector}.
+ * </li>
+ * <li>
  * <b>propertyTimeStart</b><br/>
  * The value defines the name of the property that is inspected for a time stamp 
  * in <code> {@link System#currentTimeMillis()}</code> syntax for the validity 
@@ -280,6 +283,14 @@ public class CmsTimeRangeCategoryCollector extends A_CmsResourceCollector {
          * Default is 'true'.
          */
         public static final String PARAM_KEY_CATEGORY_INCLUSIVE = "categoryInclusive";
+        
+        /**
+         * The collector parameter key for parallel collection. 
+         * 'true' will allow the collector to process result candidates in 
+         * parallel, using multiple threads. 
+         * Default is 'false'.
+         */
+        public static final String PARAM_KEY_PARALLEL = "parallel";
 
         /** List containing the (root paths of) categories to allow (if any). */
         private List m_categories = Collections.EMPTY_LIST;
@@ -316,6 +327,9 @@ public class CmsTimeRangeCategoryCollector extends A_CmsResourceCollector {
         
         /** Flag for how to treat multiple categories. If true, when filtering on multiple categories, a resource will need only to belong to any of the categories. */
         private boolean m_categoryInclusive = true;
+        
+        /** Flag for parallel collection. If true, result candidates may be processed in parallel. */
+        private boolean m_parallel = false;
 
         /** The end of the validity time frame. */
         private long m_timeFrameEnd = Long.MAX_VALUE;
@@ -326,6 +340,9 @@ public class CmsTimeRangeCategoryCollector extends A_CmsResourceCollector {
         /** The resource type to require. */
         private I_CmsResourceType m_type;
 
+        /** The query holding the collector parameters. */
+        private EventQuery m_query;
+
         /**
          * Constructor with the collector param of the tag.<p>
          * 
@@ -337,15 +354,53 @@ public class CmsTimeRangeCategoryCollector extends A_CmsResourceCollector {
         public CollectorDataPropertyBased(String data)
         throws CmsLoaderException {
 
-            try {
-                parseParam(data);
-            } catch (ParseException pe) {
-                CmsRuntimeException ex = new CmsIllegalArgumentException(org.opencms.file.collectors.Messages.get().container(
-                    org.opencms.file.collectors.Messages.ERR_COLLECTOR_PARAM_DATE_FORMAT_SYNTAX_0));
-                ex.initCause(pe);
-                throw ex;
+            this(EventQuery.valueOf(data));
+        }
+
+        /**
+         * Constructor with a pre-parsed query.<p>
+         * 
+         * @param query the query. 
+         * 
+         * @throws CmsLoaderException if the query specifies an illegal resource type.
+         */
+        public CollectorDataPropertyBased(EventQuery query)
+        throws CmsLoaderException {
+
+            m_query = query;
+            m_fileName = query.getFolder();
+            if (query.getResourceType() != null) {
+                m_type = OpenCms.getResourceManager().getResourceType(query.getResourceType());
             }
+            m_count = query.getResultLimit();
+            m_sortDescending = query.isSortDescending();
+            m_timeFrameStart = query.getTimeStart();
+            m_timeFrameEnd = query.getTimeEnd();
+            if (query.getPropertyTimeStart() != null) {
+                m_propertyTimeStart.setName(query.getPropertyTimeStart());
+            }
+            if (query.getPropertyTimeEnd() != null) {
+                m_propertyTimeEnd.setName(query.getPropertyTimeEnd());
+            }
+            if (query.getPropertyCategories() != null) {
+                m_propertyCategories.setName(query.getPropertyCategories());
+            }
+            m_categories = query.getCategories();
+            m_excludedFolders = query.getExcludedFolders();
+            m_excludeExpired = query.isExcludeExpired();
+            m_includeRecurrences = query.isIncludeRecurrences();
+            m_overlapLenient = query.isOverlapLenient();
+            m_categoryInclusive = query.isCategoryInclusive();
+            m_parallel = query.isParallel();
+        }
 
+        /**
+         * Returns the query holding the collector parameters.<p>
+         *
+         * @return The query holding the collector parameters.
+         */
+        public EventQuery getQuery() {
+            return m_query;
         }
 
         /**
@@ -514,6 +569,18 @@ public class CmsTimeRangeCategoryCollector extends A_CmsResourceCollector {
             return m_overlapLenient;
         }
         
+        /**
+         * Returns the flag that indicates whether or not result candidates may 
+         * be processed in parallel.<p>
+         * 
+         * Defaults to false.<p>
+         * 
+         * @return true if result candidates may be processed in parallel, false if not.
+         */
+        public boolean isParallel() {
+            return m_parallel;
+        }
+        
         /**
          * Defines how the collector treats multiple categories.<p>
          * 
@@ -528,87 +595,6 @@ public class CmsTimeRangeCategoryCollector extends A_CmsResourceCollector {
             return m_categoryInclusive;
         }
         
-        /**
-         * Internally parses the constructor-given param into the data model 
-         * of this instance.<p> 
-         * 
-         * @param param the constructor-given param. 
-         * 
-         * @throws CmsLoaderException if the collector param specifies an illegal resource type.
-         * 
-         * @throws ParseException if date parsing in scope of the param attribute fails. 
-         */
-        private void parseParam(final String param) throws CmsLoaderException, ParseException {
-
-            List keyValuePairs = CmsStringUtil.splitAsList(param, '|');
-            String[] keyValuePair;
-            Iterator itKeyValuePairs = keyValuePairs.iterator();
-            String keyValuePairStr;
-            String key;
-            String value;
-            while (itKeyValuePairs.hasNext()) {
-                keyValuePairStr = (String)itKeyValuePairs.next();
-                keyValuePair = CmsStringUtil.splitAsArray(keyValuePairStr, '=');
-                if (keyValuePair.length != 2) {
-                    throw new CmsIllegalArgumentException(org.opencms.file.collectors.Messages.get().container(
-                        org.opencms.file.collectors.Messages.ERR_COLLECTOR_PARAM_KEY_VALUE_SYNTAX_1,
-                        new Object[] {keyValuePairStr}));
-                }
-                key = String.valueOf(keyValuePair[0]).trim();
-                value = String.valueOf(keyValuePair[1]).trim();
-
-                if (PARAM_KEY_RESOURCE.equals(key)) {
-                    m_fileName = value;
-                } else if (PARAM_KEY_RESOURCE_TYPE.equals(key)) {
-                    m_type = OpenCms.getResourceManager().getResourceType(value);
-                } else if (PARAM_KEY_RESULT_LIMIT.equals(key)) {
-                    m_count = Integer.parseInt(value);
-                } else if (PARAM_KEY_SORT_DESCENDING.equals(key)) {
-                    m_sortDescending = Boolean.valueOf(value).booleanValue();
-                } else if (PARAM_KEY_TIMEFRAME_START.equals(key)) {
-                    try {
-                        m_timeFrameStart = EventCalendarUtils.parseTimestamp(value);
-                    } catch (Exception e) {
-                        m_timeFrameStart = 0;
-                        if (LOG.isErrorEnabled()) {
-                            LOG.error("Error trying to set '" + value + "' as time frame start (collecting from " + m_fileName + ").", e);
-                        }
-                    }
-                } else if (PARAM_KEY_TIMEFRAME_END.equals(key)) {
-                    try {
-                        m_timeFrameEnd = EventCalendarUtils.parseTimestamp(value);
-                    } catch (Exception e) {
-                        m_timeFrameEnd = 0;
-                        if (LOG.isErrorEnabled()) {
-                            LOG.error("Error trying to set '" + value + "' as time frame end (collecting from " + m_fileName + ").", e);
-                        }
-                    }
-                } else if (PARAM_KEY_PROPERTY_TIME_START.equals(key)) {
-                    m_propertyTimeStart.setName(value);
-                } else if (PARAM_KEY_PROPERTY_TIME_END.equals(key)) {
-                    m_propertyTimeEnd.setName(value);
-                } else if (PARAM_KEY_CATEGORIES.equals(key)) {
-                    m_categories = CmsStringUtil.splitAsList(value, ',');
-                } else if (PARAM_KEY_EXCLUDE_FOLDERS.equals(key)) {
-                    m_excludedFolders = CmsStringUtil.splitAsList(value, ',');
-                } else if (PARAM_KEY_PROPERTY_CATEGORIES.equals(key)) {
-                    m_propertyCategories.setName(value);
-                } else if (PARAM_KEY_EXCLUDE_EXPIRED.equals(key)) {
-                    m_excludeExpired = Boolean.valueOf(value).booleanValue();
-                } else if (PARAM_KEY_INCLUDE_RECURRENCES.equals(key)) {
-                    m_includeRecurrences = Boolean.valueOf(value).booleanValue();
-                } else if (PARAM_KEY_OVERLAP_LENIENT.equals(key)) {
-                    m_overlapLenient = Boolean.valueOf(value).booleanValue();
-                } else if (PARAM_KEY_CATEGORY_INCLUSIVE.equals(key)) {
-                    m_categoryInclusive = Boolean.valueOf(value).booleanValue();
-                } else {
-                    // now, one could accept additional filter properties here...
-                }
-
-            }
-
-        }
-
     } // End of inner class CollectorDataPropertyBased
     
      /** Static array of the collectors implemented by this class. */
@@ -617,8 +603,14 @@ public class CmsTimeRangeCategoryCollector extends A_CmsResourceCollector {
     /** Sorted set for fast collector name lookup. */
     private static final List COLLECTORS_LIST = Collections.unmodifiableList(Arrays.asList( new String[] {COLLECTOR_NAME} ));
 
-    /** SQL Standard date format: "yyyy-MM-dd HH:mm:ss".*/
-    public static final DateFormat DATEFORMAT_SQL = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    /** The maximum number of candidates read one by one when using the event index as a side index. Above this, one bulk read of the folder is used instead. (This is an unmeasured estimate, not a measured crossover point.) */
+    public static final int SIDE_INDEX_MAX_READS = 200;
+    
+    /** SQL Standard date format pattern: "yyyy-MM-dd HH:mm:ss".*/
+    public static final String DATEFORMAT_SQL_PATTERN = "yyyy-MM-dd HH:mm:ss";
+    
+    /** SQL Standard date format: "yyyy-MM-dd HH:mm:ss". Not thread-safe.*/
+    public static final DateFormat DATEFORMAT_SQL = new SimpleDateFormat(DATEFORMAT_SQL_PATTERN);
     
     /** The logger. */
     private static final Log LOG = LogFactory.getLog(CmsTimeRangeCategoryCollector.class);
@@ -728,6 +720,66 @@ public class CmsTimeRangeCategoryCollector extends A_CmsResourceCollector {
         }
     }*/
 
+    /**
+     * Reads the resources of the given type in the given folder (including 
+     * sub-folders), using the given filter.
+     * <p>
+     * If the resources are events (as identified by the given type and time 
+     * properties), and the context is the guest user in the online project, 
+     * the {@link EventIndex} is used to narrow down the candidates before 
+     * reading them. Only resources with a stored time span that can overlap 
+     * the collector's time frame are then read, one by one - unless there 
+     * are more than {@link #SIDE_INDEX_MAX_READS} of them, in which case a 
+     * single bulk read is used instead. Otherwise, all resources in the 
+     * folder are read.
+     * <p>
+     * Either way, the caller must still evaluate the time frame for each 
+     * returned resource.
+     * 
+     * @param cms Initialized CmsObject.
+     * @param foldername The folder to read from.
+     * @param filter The filter to use. Should require the given type.
+     * @param type The resource type ID.
+     * @param propertyTimeStart The name of the start time property.
+     * @param propertyTimeEnd The name of the end time property.
+     * @return The resources in the given folder, possibly narrowed down to those that can match the collector's time frame.
+     * @throws CmsException If reading the resources fails.
+     */
+    protected List<CmsResource> readResourcesInTimeFrame(CmsObject cms, 
+                                                            String foldername, 
+                                                            CmsResourceFilter filter, 
+                                                            int type, 
+                                                            String propertyTimeStart, 
+                                                            String propertyTimeEnd) throws CmsException {
+        
+        if (EventEntry.PROPERTY_TIME_START.equals(propertyTimeStart)
+                && EventEntry.PROPERTY_TIME_END.equals(propertyTimeEnd)
+                && type == OpenCms.getResourceManager().getResourceType(EventEntry.RESOURCE_TYPE_NAME_EVENT).getTypeId()) {
+            EventIndex index = EventIndex.getInstance(cms);
+            String folderRootPath = cms.getRequestContext().addSiteRoot(foldername);
+            List<EventRecord> records = index == null ? null : index.query(folderRootPath, 
+                                                                            data.getTimeFrameStart(), 
+                                                                            data.getTimeFrameEnd(), 
+                                                                            cms.getRequestContext().getRequestTime());
+            if (records != null && records.size() <= SIDE_INDEX_MAX_READS) {
+                List<CmsResource> result = new ArrayList<CmsResource>(records.size());
+                Iterator<EventRecord> iRecords = records.iterator();
+                while (iRecords.hasNext()) {
+                    try {
+                        CmsResource res = cms.readResource(iRecords.next().getStructureId(), filter);
+                        if (res.getRootPath().startsWith(folderRootPath)) {
+                            result.add(res);
+                        }
+                    } catch (CmsException e) {
+                        // Not readable in this context (or gone) => skip it
+                    }
+                }
+                return result;
+            }
+        }
+        return cms.readResources(foldername, filter, true);
+    }
+
     //private List getTimeRangeAndCategories(CmsObject cms, boolean includePartialOverlaps, boolean inclusive) throws CmsException {
     private List getTimeRangeAndCategories(CmsObject cms) throws CmsException {
 
@@ -737,7 +789,13 @@ public class CmsTimeRangeCategoryCollector extends A_CmsResourceCollector {
         String foldername = CmsResource.getFolderPath(data.getFileName());
         CmsResourceFilter filter = CmsResourceFilter.DEFAULT.addRequireType(data.getType()).addExcludeFlags(
             CmsResource.FLAG_TEMPFILE);
-        result = cms.readResources(foldername, filter, true); // Fetch all folder resources, filtered by type and flags
+        // Fetch folder resources, filtered by type and flags (and possibly pre-filtered by time range)
+        result = readResourcesInTimeFrame(cms, 
+                                            foldername, 
+                                            filter, 
+                                            data.getType(), 
+                                            data.getPropertyTimeStart().getName(), 
+                                            data.getPropertyTimeEnd().getName());
 
         // Step 2: Time range filtering
         //String timeStartProperty = this.data.getPropertyTimeStart().getName();  // The name of the starting time property
@@ -0,0 +1,151 @@
+package no.npolar.common.eventcalendar;
+
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.logging.Log;
+import org.opencms.jsp.CmsJspActionElement;
+import org.opencms.main.CmsEvent;
+import org.opencms.main.CmsLog;
+import org.opencms.main.I_CmsEventListener;
+import org.opencms.main.OpenCms;
+
+/**
+ * A cache of date formats and localized date format patterns, used when
+ * rendering events.
+ * <p>
+ * Date formats are cached per thread, keyed by pattern, locale and time zone,
+ * as {@link SimpleDateFormat} is not thread-safe. The formats returned by
+ * {@link #getFormat(java.lang.String, java.util.Locale, java.util.TimeZone)}
+ * must therefore be used by the calling thread only, and never be modified
+ * or handed on - for example to {@link EventEntry#setDateFormat(java.text.SimpleDateFormat)}.
+ * <p>
+ * Date format patterns read from labels are shared across threads, keyed
+ * by the label locale and the label key, so that each label is read once
+ * per locale rather than once per event. The patterns are cleared whenever
+ * caches are cleared, or a project is published.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class DateFormatCache {
+
+    /** The label key prefix for localized date format patterns. */
+    public static final String LABEL_PREFIX = "label.event.dateformat.";
+    /** The key separator. */
+    private static final char SEPARATOR = '\n';
+    /** The logger. */
+    private static final Log LOG = CmsLog.getLog(DateFormatCache.class);
+
+    /** The date formats of each thread. */
+    private static final ThreadLocal<Map<String, SimpleDateFormat>> FORMATS = new ThreadLocal<Map<String, SimpleDateFormat>>() {
+        @Override
+        protected Map<String, SimpleDateFormat> initialValue() {
+            return new HashMap<String, SimpleDateFormat>();
+        }
+    };
+    /** The date format patterns, keyed by label locale and label key. */
+    private static final Map<String, String> PATTERNS = new ConcurrentHashMap<String, String>();
+    /** Flag indicating whether or not the event listener has been registered. */
+    private static boolean listenerRegistered = false;
+
+    /**
+     * Gets the calling thread's date format for the given pattern, locale
+     * and time zone.
+     * <p>
+     * The returned format must not be modified, and must not be used by any
+     * other thread.
+     *
+     * @param pattern The date format pattern.
+     * @param locale The locale.
+     * @param tz The time zone, or null for the default time zone.
+     * @return The calling thread's date format for the given pattern, locale and time zone.
+     * @throws IllegalArgumentException If the pattern is invalid.
+     */
+    public static SimpleDateFormat getFormat(String pattern, Locale locale, TimeZone tz) {
+        String key = pattern + SEPARATOR + locale + SEPARATOR + (tz == null ? null : tz.getID());
+        Map<String, SimpleDateFormat> formats = FORMATS.get();
+        SimpleDateFormat format = formats.get(key);
+        if (format == null) {
+            format = new SimpleDateFormat(pattern, locale);
+            if (tz != null) {
+                format.setTimeZone(tz);
+            }
+            formats.put(key, format);
+        }
+        return format;
+    }
+
+    /**
+     * Gets the calling thread's localized date format for the given name,
+     * as read from the label {@link #LABEL_PREFIX}<code>name</code>.
+     * <p>
+     * The returned format must not be modified, and must not be used by any
+     * other thread.
+     *
+     * @param cms Initialized action element, needed to read labels.
+     * @param name The date format name, e.g. "dateonly" or "dmy".
+     * @param locale The locale.
+     * @param tz The time zone, or null for the default time zone.
+     * @return The calling thread's localized date format for the given name.
+     * @throws IllegalArgumentException If the pattern is invalid.
+     * @see #getPattern(org.opencms.jsp.CmsJspActionElement, java.lang.String)
+     */
+    public static SimpleDateFormat getFormat(CmsJspActionElement cms, String name, Locale locale, TimeZone tz) {
+        return getFormat(getPattern(cms, name), locale, tz);
+    }
+
+    /**
+     * Gets the localized date format pattern for the given name, as read
+     * from the label {@link #LABEL_PREFIX}<code>name</code>.
+     *
+     * @param cms Initialized action element, needed to read labels.
+     * @param name The date format name, e.g. "dateonly" or "dmy".
+     * @return The localized date format pattern for the given name.
+     */
+    public static String getPattern(CmsJspActionElement cms, String name) {
+        String labelKey = LABEL_PREFIX.concat(name);
+        String key = String.valueOf(cms.getRequestContext().getLocale()) + SEPARATOR + labelKey;
+        String pattern = PATTERNS.get(key);
+        if (pattern == null) {
+            pattern = cms.label(labelKey);
+            PATTERNS.put(key, pattern);
+            registerListener();
+        }
+        return pattern;
+    }
+
+    /**
+     * Clears the cached date format patterns.
+     * <p>
+     * The date formats are not cleared, as they depend only on their key.
+     */
+    public static void clear() {
+        PATTERNS.clear();
+    }
+
+    /**
+     * Registers the event listener that clears the cache, unless that has
+     * been done already.
+     */
+    private static synchronized void registerListener() {
+        if (!listenerRegistered) {
+            OpenCms.addCmsEventListener(new I_CmsEventListener() {
+                    public void cmsEvent(CmsEvent event) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Clearing date format pattern cache.");
+                        }
+                        clear();
+                    }
+                },
+                new int[] {
+                    I_CmsEventListener.EVENT_PUBLISH_PROJECT,
+                    I_CmsEventListener.EVENT_CLEAR_CACHES
+                }
+            );
+            listenerRegistered = true;
+        }
+    }
+}
@@ -3,11 +3,12 @@ package no.npolar.common.eventcalendar;
 import java.util.*;
 //import java.sql.SQLException;
 //import java.text.ParseException;
+import java.text.FieldPosition;
 import java.text.SimpleDateFormat;
 //import org.opencms.file.CmsDataAccessException;
 import java.util.ArrayList;
 import org.opencms.file.CmsResource;
-//import org.opencms.util.CmsUUID;
+import org.opencms.util.CmsUUID;
 import org.opencms.main.CmsException;
 //import org.opencms.xml.A_CmsXmlDocument;
 //import org.opencms.xml.content.*;
@@ -72,17 +73,19 @@ public class EventCalendar extends GregorianCalendar {
     /** The MySQL standard datetime format */
     public static final String MYSQL_DATETIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
     
-    /** The collector parameter string. Constructed dynamically when fetching events. */
-    private String collectorParam = null;
+    /** The collector query. Constructed dynamically when fetching events. */
+    private EventQuery query = null;
     
     /** List of dated ('normal') events. This list is populated when calling one of the getEvents() methods that accept excluded/undated folders lists as arguments. */
-    private List datedEvents = null;
+    private List<EventEntry> datedEvents = null;
     /** List of undated events. This list is populated when calling one of the getEvents() methods that accept excluded/undated folders lists as arguments. */
-    private List undatedEvents = null;
+    private List<EventEntry> undatedEvents = null;
     /** List of excluded events. This list is populated when calling one of the getEvents() methods that accept excluded/undated folders lists as arguments. */
-    private List excludedEvents = null;
+    private List<EventEntry> excludedEvents = null;
     /** List of expired events. This list is populated when calling one of the getEvents() methods. */
-    private List expiredEvents = null;
+    private List<EventEntry> expiredEvents = null;
+    /** The site paths of the collected events, keyed by structure ID. Captured when collecting, to avoid re-reading the event files when classifying them. */
+    private Map<CmsUUID, String> eventSitePaths = new HashMap<CmsUUID, String>();
     
     /** The long value representing the start of the current range. Set when calling one of the getEvents() methods. */
     private long rangeStart = -1;
@@ -116,7 +119,8 @@ public class EventCalendar extends GregorianCalendar {
         this.datedEvents = ec.datedEvents;
         this.undatedEvents = ec.undatedEvents;
         this.excludedEvents = ec.excludedEvents;
-        this.collectorParam = ec.collectorParam;
+        this.query = ec.query;
+        this.eventSitePaths = new HashMap<CmsUUID, String>(ec.eventSitePaths);
     }
     
     /*public List getTodaysEvents(CmsObject cmso, Locale locale) throws CmsException, SQLException {
@@ -171,64 +175,51 @@ public class EventCalendar extends GregorianCalendar {
     }*/
     
     /**
-     * Gets a collector parameter string that can be used to pass parameters
-     * to the CmsTimeRangeCategoryCollector.<p>
+     * Gets a query that can be used to pass parameters to the 
+     * TimeRangeCategoryEventCollector.<p>
      * 
      * @param start The time range start time
      * @param end The time range end time
      * @param eventsFolder The folder to collect resources from
-     * @param categories The categories used to filter collected resources
+     * @param categories The categories used to filter collected resources (CmsCategory or String instances)
      * @param sortDescending Sort ordering
      * @param resultLimit Maximum number of resources to collect
      * 
-     * @return A parameter string that can be used to pass parameters to the CmsTimeRangeCategoryCollector
+     * @return A query that can be used to pass parameters to the TimeRangeCategoryEventCollector
      */
-    private String getCollectorParameterString(String start, 
-                                                String end, 
-                                                String eventsFolder, 
-                                                List categories, 
-                                                boolean excludeExpired, 
-                                                boolean sortDescending, 
-                                                boolean overlapLenient,
-                                                boolean categoryInclusive,
-                                                int resultLimit) {
-        collectorParam = "resource=" + eventsFolder;
-        collectorParam += "|resourceType=" + EventEntry.RESOURCE_TYPE_NAME_EVENT;
-        collectorParam += "|timeStart=" + start;
-        collectorParam += "|timeEnd=" + end;
-        collectorParam += "|propertyTimeStart=" + EventEntry.PROPERTY_TIME_START;
-        collectorParam += "|propertyTimeEnd=" + EventEntry.PROPERTY_TIME_END;
-        collectorParam += "|excludeExpired=" + String.valueOf(excludeExpired);
-        collectorParam += "|overlapLenient=" + String.valueOf(overlapLenient);
-        collectorParam += "|categoryInclusive=" + String.valueOf(categoryInclusive);
-        collectorParam += "|sortDescending=" + String.valueOf(sortDescending);
-        collectorParam += "|resultLimit=" + (resultLimit == -1 ? String.valueOf(Integer.MAX_VALUE) : String.valueOf(resultLimit));
-        if (categories != null) {
+    private EventQuery getQuery(long start, 
+                                long end, 
+                                String eventsFolder, 
+                                List categories, 
+                                boolean excludeExpired, 
+                                boolean sortDescending, 
+                                boolean overlapLenient,
+                                boolean categoryInclusive,
+                                int resultLimit) {
+        EventQuery.Builder builder = new EventQuery.Builder()
+                .setFolder(eventsFolder)
+                .setResourceType(EventEntry.RESOURCE_TYPE_NAME_EVENT)
+                .setTimeFrame(start, end)
+                .setTimeProperties(EventEntry.PROPERTY_TIME_START, EventEntry.PROPERTY_TIME_END)
+                .setExcludeExpired(excludeExpired)
+                .setOverlapLenient(overlapLenient)
+                .setCategoryInclusive(categoryInclusive)
+                .setSortDescending(sortDescending)
+                .setResultLimit(resultLimit);
+        if (categories != null && !categories.isEmpty()) {
+            builder.setCategoriesProperty(EventEntry.PROPERTY_CATEGORIES);
             Iterator itr = categories.iterator();
-            Object obj = null;
-            CmsCategory cat = null;
-            String catName = null;
-            if (itr.hasNext()) {
-                collectorParam += "|propertyCategories=" + EventEntry.PROPERTY_CATEGORIES;
-                collectorParam += "|categories=";
-                while (itr.hasNext()) {
-                    obj = itr.next();
-                    if (obj instanceof CmsCategory) {
-                        cat = (CmsCategory)obj;
-                        //collectorParam += cat.getName();
-                        collectorParam += cat.getRootPath();
-                    }
-                    else if (obj instanceof String) {
-                        catName = (String)obj;
-                        collectorParam += catName;
-                    }
-                    if (itr.hasNext()) {
-                        collectorParam += ",";
-                    }
+            while (itr.hasNext()) {
+                Object obj = itr.next();
+                if (obj instanceof CmsCategory) {
+                    builder.addCategory(((CmsCategory)obj).getRootPath());
+                }
+                else if (obj instanceof String) {
+                    builder.addCategory((String)obj);
                 }
             }
         }
-        return collectorParam;
+        return builder.build();
     }
     
     /**
@@ -241,14 +232,32 @@ public class EventCalendar extends GregorianCalendar {
      * 
      * @throws org.opencms.main.CmsException If something goes wrong when attempting to collect the events
      * 
-     * @see #getCollectorParameterString(java.lang.String, java.lang.String, java.lang.String, java.util.List, boolean, int)
+     * @see #getQuery(long, long, java.lang.String, java.util.List, boolean, boolean, boolean, boolean, int)
      * @see CmsTimeRangeCategoryCollector#getResults(org.opencms.file.CmsObject, java.lang.String, java.lang.String) 
      */
     protected List collectEvents(CmsJspActionElement cms, String collectorParam) throws CmsException {
+        return collectEvents(cms, EventQuery.valueOf(collectorParam));
+    }
+    
+    /**
+     * Collects events using the given query.<p>
+     * 
+     * @param cms An initialized action element
+     * @param query The query
+     * 
+     * @return A list of EventEntry objects collected using the given query
+     * 
+     * @throws org.opencms.main.CmsException If something goes wrong when attempting to collect the events
+     * 
+     * @see TimeRangeCategoryEventCollector#getResults(org.opencms.file.CmsObject, no.npolar.common.eventcalendar.EventQuery) 
+     */
+    protected List collectEvents(CmsJspActionElement cms, EventQuery query) throws CmsException {
         Locale locale = cms.getRequestContext().getLocale();
         
-        SimpleDateFormat dateFormatDateTime = new SimpleDateFormat(cms.label("label.event.dateformat.datetime"), locale);
-        SimpleDateFormat dateFormatDateOnly = new SimpleDateFormat(cms.label("label.event.dateformat.dateonly"), locale);
+        String dateFormatPatternDateTime = DateFormatCache.getPattern(cms, EventEntry.TIME_DISPLAY_DATETIME);
+        String dateFormatPatternDateOnly = DateFormatCache.getPattern(cms, EventEntry.TIME_DISPLAY_DATEONLY);
+        SimpleDateFormat dateFormatDateTime = DateFormatCache.getFormat(dateFormatPatternDateTime, locale, null);
+        SimpleDateFormat dateFormatDateOnly = DateFormatCache.getFormat(dateFormatPatternDateOnly, locale, null);
         
         
         CmsObject cmso = cms.getCmsObject();
@@ -266,7 +275,12 @@ public class EventCalendar extends GregorianCalendar {
         
         //CmsTimeRangeCategoryCollector collector = new CmsTimeRangeCategoryCollector();
         TimeRangeCategoryEventCollector collector = new TimeRangeCategoryEventCollector();
-        List result = collector.getResults(cmso, null, collectorParam);
+        List result = collector.getResults(cmso, query);
+        Map<CmsUUID, List<CmsProperty>> properties = EventPropertyLoader.load(cmso, result);
+        eventSitePaths.clear();
+        StringBuffer htmlBuffer = new StringBuffer(256);
+        FieldPosition fieldPosition = new FieldPosition(0);
+        Date date = new Date();
         Iterator<CmsResource> itResults = result.iterator();
         try {
             while (itResults.hasNext()) {
@@ -318,14 +332,24 @@ public class EventCalendar extends GregorianCalendar {
                         "</span>";
                 */
                 
-                EventEntry event = new EventEntry(cmso, r);
-                event.setDateFormat(event.isDisplayDateOnly() ? dateFormatDateOnly : dateFormatDateTime);
+                EventEntry event = new EventEntry(cmso, r, properties.get(r.getStructureId()));
+                eventSitePaths.put(r.getStructureId(), cmso.getSitePath(r));
+                SimpleDateFormat dateFormat = event.isDisplayDateOnly() ? dateFormatDateOnly : dateFormatDateTime;
+                event.setDateFormat(event.isDisplayDateOnly() ? dateFormatPatternDateOnly : dateFormatPatternDateTime, locale);
                 
-                // Construct the HTML
-                String html = "<h4>" + event.getTitle() + "</h4>" +
-                        "<span class=\"event-time\">" + event.formatStartTime() + (event.formatEndTime() != null ? (" &ndash; " + event.formatEndTime()) : "") + "</span>";
+                // Construct the HTML (formatting dates directly into the reused buffer)
+                htmlBuffer.setLength(0);
+                htmlBuffer.append("<h4>").append(event.getTitle()).append("</h4><span class=\"event-time\">");
+                date.setTime(event.getStartTime());
+                dateFormat.format(date, htmlBuffer, fieldPosition);
+                if (event.hasEndTime()) {
+                    htmlBuffer.append(" &ndash; ");
+                    date.setTime(event.getEndTime());
+                    dateFormat.format(date, htmlBuffer, fieldPosition);
+                }
+                htmlBuffer.append("</span>");
                 
-                event.setHtml(html);
+                event.setHtml(htmlBuffer.toString());
                 events.add(event);
             }
         } catch (Exception jspe) {
@@ -456,7 +480,6 @@ public class EventCalendar extends GregorianCalendar {
                             boolean overlapLenient,
                             boolean categoryInclusive,
                             int resultLimit) throws CmsException, IllegalArgumentException {
-        SimpleDateFormat mySqlDateFormat = new SimpleDateFormat(MYSQL_DATETIME_FORMAT);
         
         Date timeRangeStart = null;
         Date timeRangeEnd = null;
@@ -472,13 +495,12 @@ public class EventCalendar extends GregorianCalendar {
         }
 
         // Construct the parameter string
-        collectorParam = getCollectorParameterString(mySqlDateFormat.format(timeRangeStart), mySqlDateFormat.format(timeRangeEnd), 
-                                                                (eventsFolder != null ? eventsFolder : cms.getRequestContext().getFolderUri()), 
-                                                                categories, excludeExpired, sortDescending, overlapLenient, categoryInclusive, resultLimit);
+        query = getQuery(timeRangeStart.getTime(), timeRangeEnd.getTime(), 
+                            (eventsFolder != null ? eventsFolder : cms.getRequestContext().getFolderUri()), 
+                            categories, excludeExpired, sortDescending, overlapLenient, categoryInclusive, resultLimit);
         
-        List allEvents = this.collectEvents(cms, collectorParam);
+        List allEvents = this.collectEvents(cms, query);
         this.createSeparateEventLists(allEvents, excludedFolders, undatedFolders, cms.getCmsObject());
-        allEvents.removeAll(excludedEvents);
         return allEvents;
     }
     
@@ -642,12 +664,11 @@ public class EventCalendar extends GregorianCalendar {
             throw new IllegalArgumentException("Unable to parse start/end of time range: " + e.getMessage());
         }
 
-        collectorParam = getCollectorParameterString(start, end, (eventsFolder != null ? eventsFolder : cms.getRequestContext().getFolderUri()), 
-                                                                categories, excludeExpired, sortDescending, overlapLenient, categoryInclusive, resultLimit);
+        query = getQuery(this.rangeStart, this.rangeEnd, (eventsFolder != null ? eventsFolder : cms.getRequestContext().getFolderUri()), 
+                            categories, excludeExpired, sortDescending, overlapLenient, categoryInclusive, resultLimit);
         
-        List allEvents = this.collectEvents(cms, collectorParam); // Get a list of ALL events
+        List allEvents = this.collectEvents(cms, query); // Get a list of ALL events
         this.createSeparateEventLists(allEvents, excludedFolders, undatedFolders, cms.getCmsObject());
-        allEvents.removeAll(excludedEvents); // Remove the excluded events. 
         return allEvents; // Return dated and undated (if any) events
     }
     
@@ -1014,46 +1035,52 @@ public class EventCalendar extends GregorianCalendar {
      * @throws org.opencms.main.CmsException if the event file cannot be read
      */
     protected void createSeparateEventLists(List allEvents, List excludedFolders, List undatedFolders, CmsObject cmso) throws CmsException {
-        this.datedEvents = new ArrayList<EventEntry>();
+        this.datedEvents = new ArrayList<EventEntry>(allEvents.size());
         this.undatedEvents = new ArrayList<EventEntry>();
         this.excludedEvents = new ArrayList<EventEntry>();
         this.expiredEvents = new ArrayList<EventEntry>();
         
-        // Prevent NPEs: make any null lists empty ones instead
-        if (excludedFolders == null)
-            excludedFolders = new ArrayList<String>(0);
-        if (undatedFolders == null)
-            undatedFolders = new ArrayList<String>(0);
-           
+        // Compile the flagged folders into a trie, mapping each folder to the 
+        // list its events belong in. Excluded folders are added last, so they 
+        // take precedence over undated folders on the same path.
+        FolderTrie<List<EventEntry>> flaggedFolders = new FolderTrie<List<EventEntry>>();
+        if (undatedFolders != null) {
+            for (Object folder : undatedFolders) {
+                flaggedFolders.put(String.valueOf(folder), undatedEvents);
+            }
+        }
+        if (excludedFolders != null) {
+            for (Object folder : excludedFolders) {
+                flaggedFolders.put(String.valueOf(folder), excludedEvents);
+            }
+        }
         
+        // Classify and split all events in one pass, without removing from any list
         Iterator iAll = allEvents.iterator();
         while (iAll.hasNext()) {
             EventEntry event = (EventEntry)iAll.next();
             
             // If the event has expired (relative to "now"), add it to the expired list
-            if (event.isExpired())
+            if (event.isExpired()) {
                 expiredEvents.add(event);
+            }
             
-            String eventTreeFolder = CmsResource.getParentFolder(cmso.getSitePath(cmso.readResource(event.getStructureId())));
-            // Deconstruct the sub tree of the event stepwise, and check if any of its parents folders is flagged as excluded or undated
-            while (!eventTreeFolder.equals("/")) {
-                if (excludedFolders.contains(eventTreeFolder)) {
-                    // The event's path is in the sub-tree of a folder flagged as containing excluded events
-                    excludedEvents.add(event); // Add the event to the list of excluded events
-                    iAll.remove(); // Remove the event from the list of all events
-                    break;
-                } 
-                else if (undatedFolders.contains(eventTreeFolder)) {
-                    // The event's path is in the sub-tree of a folder flagged as containing undated events
-                    undatedEvents.add(event);
-                    iAll.remove();
-                    break;
+            List<EventEntry> target = null;
+            if (!flaggedFolders.isEmpty()) {
+                String eventPath = eventSitePaths.get(event.getStructureId());
+                if (eventPath == null) {
+                    // Not captured during collection, read it
+                    eventPath = cmso.getSitePath(cmso.readResource(event.getStructureId()));
                 }
-                eventTreeFolder = CmsResource.getParentFolder(eventTreeFolder);
+                // Use the list of the nearest flagged parent folder of the event, if any
+                target = flaggedFolders.get(eventPath);
             }
+            (target == null ? datedEvents : target).add(event);
         }
         
-        datedEvents.addAll(allEvents);
+        // Leave only the dated events in the given list
+        allEvents.clear();
+        allEvents.addAll(datedEvents);
     }
     
     /** 
@@ -1088,7 +1115,8 @@ public class EventCalendar extends GregorianCalendar {
      * @return A list of EventEntry objects.
      */
     public List<EventEntry> getNonExcludedEvents() { 
-        List events = new ArrayList<EventEntry>(datedEvents);
+        List<EventEntry> events = new ArrayList<EventEntry>(datedEvents.size() + undatedEvents.size());
+        events.addAll(datedEvents);
         events.addAll(undatedEvents);
         return events;
     }
@@ -0,0 +1,36 @@
+package no.npolar.common.eventcalendar;
+
+import org.apache.commons.logging.Log;
+import org.opencms.main.CmsLog;
+import org.opencms.module.A_CmsModuleAction;
+import org.opencms.module.CmsModule;
+
+/**
+ * Module action for the event calendar module, which releases the module's
+ * shared resources when OpenCms shuts down (or the module is reloaded).
+ * <p>
+ * To take effect, this class must be set as the action class of the module,
+ * in the module configuration.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class EventCalendarModuleAction extends A_CmsModuleAction {
+
+    /** The logger. */
+    private static final Log LOG = CmsLog.getLog(EventCalendarModuleAction.class);
+
+    /**
+     * Shuts down the executor used for parallel processing of events, so
+     * that its threads do not outlive the module.
+     *
+     * @see org.opencms.module.A_CmsModuleAction#shutDown(org.opencms.module.CmsModule)
+     */
+    @Override
+    public void shutDown(CmsModule module) {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Shutting down the event calendar module.");
+        }
+        TimeRangeCategoryEventCollector.shutDownParallelExecutor();
+        super.shutDown(module);
+    }
+}
@@ -30,6 +30,10 @@ import org.opencms.relations.CmsCategoryService;
 public class EventCalendarUtils {
     /** The logger. */
     private static final Log LOG = LogFactory.getLog(EventCalendarUtils.class);
+    /** One day, in milliseconds. */
+    private static final long DAY = 1000L * 60 * 60 * 24;
+    /** The fixed offset used when converting to and from DateValue instances (GMT+1:00). */
+    private static final long DATE_VALUE_OFFSET = 1000L * 60 * 60;
     
     public EventCalendarUtils() {
         
@@ -140,55 +144,176 @@ public class EventCalendarUtils {
     /**
      * Helper method for getting the timestamp for the end of the day represented 
      * by the given timestamp.
+     * <p>
+     * The end of the day is 23:59:59 in the system's default time zone, with 
+     * the milliseconds of the given timestamp retained.
      * 
      * @param timeInMillis The timestamp to evaluate.
      * @return The end of the day represented by the given timestamp.
      */
     public static long getEndOfDay(long timeInMillis) {
-        Calendar temp = new GregorianCalendar();
-        temp.setTimeInMillis(timeInMillis);
-        temp.set(Calendar.HOUR_OF_DAY, temp.getActualMaximum(Calendar.HOUR_OF_DAY));
-        temp.set(Calendar.MINUTE, temp.getActualMaximum(Calendar.MINUTE));
-        temp.set(Calendar.SECOND, temp.getActualMaximum(Calendar.SECOND));
-        return temp.getTimeInMillis();
+        TimeZone tz = TimeZone.getDefault(); // Read at the point of use, it may have changed
+        long epochDay = getEpochDay(timeInMillis, tz);
+        return toUtc((epochDay + 1) * DAY - 1000 + floorMod(timeInMillis, 1000), tz);
     }
     
     /**
      * Helper method for getting the timestamp for the start of the day represented 
      * by the given timestamp.
+     * <p>
+     * The start of the day is 00:00:00 in the system's default time zone, with 
+     * the milliseconds of the given timestamp retained.
      * 
      * @param timeInMillis The timestamp to evaluate.
      * @return The start of the day represented by the given timestamp.
      */
     public static long getStartOfDay(long timeInMillis) {
-        Calendar temp = new GregorianCalendar();
-        temp.setTimeInMillis(timeInMillis);
-        temp.set(Calendar.HOUR_OF_DAY, temp.getActualMinimum(Calendar.HOUR_OF_DAY));
-        temp.set(Calendar.MINUTE, temp.getActualMinimum(Calendar.MINUTE));
-        temp.set(Calendar.SECOND, temp.getActualMinimum(Calendar.SECOND));
-        return temp.getTimeInMillis();
+        TimeZone tz = TimeZone.getDefault(); // Read at the point of use, it may have changed
+        long epochDay = getEpochDay(timeInMillis, tz);
+        return toUtc(epochDay * DAY + floorMod(timeInMillis, 1000), tz);
+    }
+    
+    /**
+     * Gets the epoch day - that is, the number of days since 1970-01-01 - of 
+     * the given timestamp, in the given time zone.
+     * 
+     * @param timeInMillis The timestamp.
+     * @param tz The time zone.
+     * @return The epoch day of the given timestamp, in the given time zone.
+     */
+    public static long getEpochDay(long timeInMillis, TimeZone tz) {
+        return floorDiv(timeInMillis + tz.getOffset(timeInMillis), DAY);
+    }
+    
+    /**
+     * Gets the epoch day - that is, the number of days since 1970-01-01 - of 
+     * the given timestamp, in the system's default time zone.
+     * 
+     * @param timeInMillis The timestamp.
+     * @return The epoch day of the given timestamp, in the system's default time zone.
+     */
+    public static long getEpochDay(long timeInMillis) {
+        return getEpochDay(timeInMillis, TimeZone.getDefault());
+    }
+    
+    /**
+     * Gets the epoch month - that is, the number of months since 1970-01 - of 
+     * the given epoch day.
+     * 
+     * @param epochDay The epoch day.
+     * @return The epoch month of the given epoch day.
+     */
+    public static long getEpochMonth(long epochDay) {
+        int[] ymd = toCivil(epochDay);
+        return (ymd[0] - 1970L) * 12 + (ymd[1] - 1);
+    }
+    
+    /**
+     * Gets the year of the given epoch month.
+     * 
+     * @param epochMonth The epoch month.
+     * @return The year of the given epoch month.
+     */
+    public static int getYearOfEpochMonth(long epochMonth) {
+        return (int)(1970 + floorDiv(epochMonth, 12));
+    }
+    
+    /**
+     * Converts the given epoch day to year, month (1-12) and day-of-month.
+     * <p>
+     * Uses the proleptic Gregorian calendar, see 
+     * <a href="http://howardhinnant.github.io/date_algorithms.html">chrono-compatible low-level date algorithms</a>.
+     * 
+     * @param epochDay The epoch day.
+     * @return The year, month and day-of-month of the given epoch day, in that order.
+     */
+    private static int[] toCivil(long epochDay) {
+        long z = epochDay + 719468;
+        long era = floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int)(doy - (153 * mp + 2) / 5 + 1);
+        int month = (int)(mp < 10 ? mp + 3 : mp - 9);
+        int year = (int)(yoe + era * 400 + (month <= 2 ? 1 : 0));
+        return new int[] { year, month, day };
+    }
+    
+    /**
+     * Converts the given year, month (1-12) and day-of-month to an epoch day.
+     * 
+     * @param year The year.
+     * @param month The month, 1-12.
+     * @param day The day-of-month.
+     * @return The epoch day.
+     * @see #toCivil(long) 
+     */
+    private static long toEpochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+    
+    /**
+     * Converts the given local time (milliseconds since 1970-01-01T00:00 in 
+     * the given time zone) to a timestamp.
+     * <p>
+     * Like a lenient {@link GregorianCalendar}, the local time is resolved 
+     * as standard time when looking up the offset, so local times that are 
+     * skipped or repeated by daylight saving time transitions resolve the 
+     * same way.
+     * 
+     * @param localMillis The local time.
+     * @param tz The time zone.
+     * @return The timestamp.
+     */
+    private static long toUtc(long localMillis, TimeZone tz) {
+        long standard = localMillis - tz.getRawOffset(); // The timestamp, if the local time is standard time
+        int offset = tz.getOffset(standard);
+        long utc = localMillis - offset;
+        // If the offset does not apply at the result, the local time is 
+        // skipped (it falls in a "spring forward" gap)
+        return tz.getOffset(utc) == offset ? utc : standard;
+    }
+    
+    /**
+     * Floor division, as in Java 8's <code>Math.floorDiv</code>.
+     */
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+    }
+    
+    /**
+     * Floor modulus, as in Java 8's <code>Math.floorMod</code>.
+     */
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
     }
     
     /**
      * Converts the given Date instance to a DateValue instance.
+     * <p>
+     * The date is evaluated at a fixed GMT+1:00 offset.
      */
     public static DateValue convertToDateValue(Date d) {
-        Calendar helperCal = new GregorianCalendar(TimeZone.getTimeZone("GMT+1:00"), new Locale("no")); // Locale is just a random one
-        helperCal.setTime(d);
-        return new DateValueImpl(helperCal.get(Calendar.YEAR), helperCal.get(Calendar.MONTH)+1, helperCal.get(Calendar.DATE));
+        int[] ymd = toCivil(floorDiv(d.getTime() + DATE_VALUE_OFFSET, DAY));
+        return new DateValueImpl(ymd[0], ymd[1], ymd[2]);
     }
     /**
      * Converts the given DateValue instance to a Date instance.
      * <p>
-     * As DateValue know no clock time, it is set to 12:00:00 in the returned 
-     * Date instance.
+     * As DateValue know no clock time, it is set to 12:00:00 (at a fixed 
+     * GMT+1:00 offset) in the returned Date instance.
      * 
      * @param dv The DateValue to convert.
      */
     public static Date convertToDate(DateValue dv) {
-        Calendar helperCal = new GregorianCalendar(TimeZone.getTimeZone("GMT+1:00"), new Locale("no")); // Locale is just a random one
-        helperCal.set(dv.year(), dv.month()-1, dv.day(), 12, 0, 0);
-        return helperCal.getTime();
+        return new Date(toEpochDay(dv.year(), dv.month(), dv.day()) * DAY + DAY / 2 - DATE_VALUE_OFFSET);
     }
     
     /**
@@ -248,7 +373,7 @@ public class EventCalendarUtils {
     public static long parseTimestamp(String timestamp) throws ParseException {
         long parsed;
         try {
-            parsed = CmsTimeRangeCategoryCollector.DATEFORMAT_SQL.parse(timestamp).getTime();
+            parsed = DateFormatCache.getFormat(CmsTimeRangeCategoryCollector.DATEFORMAT_SQL_PATTERN, Locale.getDefault(), null).parse(timestamp).getTime();
         } catch (Exception e) {
             if (LOG.isInfoEnabled()) {
                 LOG.info("Unable to parse '" + timestamp + "' using standard date format, next fallback: parse as long...");
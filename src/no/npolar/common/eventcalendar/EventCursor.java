@@ -0,0 +1,146 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.Comparator;
+import org.opencms.util.CmsUUID;
+
+/**
+ * A position in a sorted list of events, used for keyset pagination.
+ * <p>
+ * A cursor identifies the last event on a page, by its start time and
+ * structure ID. The next page consists of the events that follow the cursor
+ * position, so earlier pages never need to be collected again.
+ * <p>
+ * Cursors can be converted to and from strings (see {@link #toString()} and
+ * {@link #valueOf(java.lang.String)}), so they can be passed in links, e.g.
+ * for "load more" functionality.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ * @see EventsCollector#getPage(no.npolar.common.eventcalendar.CollectorTimeRange, int, no.npolar.common.eventcalendar.EventCursor)
+ */
+public class EventCursor {
+
+    /** The separator used in the string representation of a cursor. */
+    private static final String SEPARATOR = "_";
+
+    /** The start time of the last event on the previous page. */
+    private final long startTime;
+    /** The structure ID of the last event on the previous page. */
+    private final CmsUUID structureId;
+
+    /**
+     * Creates a new cursor positioned at the given start time and structure ID.
+     *
+     * @param startTime The start time of the last event on the previous page.
+     * @param structureId The structure ID of the last event on the previous page.
+     */
+    public EventCursor(long startTime, CmsUUID structureId) {
+        this.startTime = startTime;
+        this.structureId = structureId;
+    }
+
+    /**
+     * Creates a new cursor positioned at the given event.
+     *
+     * @param event The last event on the previous page.
+     * @return A new cursor positioned at the given event.
+     */
+    public static EventCursor after(EventEntry event) {
+        return new EventCursor(event.getStartTime(), event.getStructureId());
+    }
+
+    /**
+     * Creates a new cursor from the given string representation, as created by
+     * {@link #toString()}.
+     *
+     * @param s The string representation of a cursor.
+     * @return A new cursor, or <code>null</code> if the given string is null, empty or invalid.
+     */
+    public static EventCursor valueOf(String s) {
+        if (s == null || s.isEmpty()) {
+            return null;
+        }
+        try {
+            int i = s.indexOf(SEPARATOR);
+            return new EventCursor(Long.parseLong(s.substring(0, i)), new CmsUUID(s.substring(i + 1)));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the start time of the cursor position.
+     *
+     * @return The start time of the cursor position.
+     */
+    public long getStartTime() { return startTime; }
+
+    /**
+     * Gets the structure ID of the cursor position.
+     *
+     * @return The structure ID of the cursor position.
+     */
+    public CmsUUID getStructureId() { return structureId; }
+
+    /**
+     * Determines if the given event follows this cursor position, when events
+     * are sorted using {@link #getComparator(boolean)}.
+     *
+     * @param event The event to evaluate.
+     * @param ascending Whether events are sorted by ascending (true) or descending (false) start time.
+     * @return True if the given event follows this cursor position, false if not.
+     */
+    public boolean precedes(EventEntry event, boolean ascending) {
+        long eventStartTime = event.getStartTime();
+        if (eventStartTime != startTime) {
+            return ascending ? eventStartTime > startTime : eventStartTime < startTime;
+        }
+        return compareIds(structureId, event.getStructureId()) < 0;
+    }
+
+    /**
+     * Gets a comparator that sorts events by start time, and then by
+     * structure ID.
+     * <p>
+     * This gives a strict ordering of events, which is required for cursors
+     * to identify a position unambiguously. (A recurring event's occurrences
+     * share the same structure ID, but never the same start time.)
+     *
+     * @param ascending Whether to sort by ascending (true) or descending (false) start time.
+     * @return A comparator that sorts events by start time, and then by structure ID.
+     */
+    public static Comparator<EventEntry> getComparator(boolean ascending) {
+        final Comparator<EventEntry> startTimeComparator = ascending ? 
+                EventEntry.COMPARATOR_START_TIME : EventEntry.COMPARATOR_START_TIME_DESC;
+        return new Comparator<EventEntry>() {
+            public int compare(EventEntry e1, EventEntry e2) {
+                int c = startTimeComparator.compare(e1, e2);
+                return c != 0 ? c : compareIds(e1.getStructureId(), e2.getStructureId());
+            }
+        };
+    }
+
+    /**
+     * Compares the given structure IDs, treating <code>null</code> as lowest.
+     *
+     * @param id1 The first structure ID.
+     * @param id2 The second structure ID.
+     * @return A negative integer, zero, or a positive integer as the first ID is less than, equal to, or greater than the second.
+     */
+    private static int compareIds(CmsUUID id1, CmsUUID id2) {
+        if (id1 == null || id2 == null) {
+            return id1 == null ? (id2 == null ? 0 : -1) : 1;
+        }
+        return id1.compareTo(id2);
+    }
+
+    /**
+     * Gets the string representation of this cursor, which can be converted
+     * back using {@link #valueOf(java.lang.String)}.
+     *
+     * @return The string representation of this cursor.
+     */
+    @Override
+    public String toString() {
+        return String.valueOf(startTime) + SEPARATOR + String.valueOf(structureId);
+    }
+}
@@ -1,5 +1,7 @@
 package no.npolar.common.eventcalendar;
 
+import java.io.IOException;
+import java.text.FieldPosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -15,15 +17,19 @@ import org.opencms.file.CmsObject;
 import org.opencms.file.CmsResource;
 import org.opencms.jsp.CmsJspActionElement;
 import org.opencms.main.CmsException;
-import com.google.ical.iter.RecurrenceIteratorFactory;
+//import com.google.ical.iter.RecurrenceIteratorFactory;
 import com.google.ical.iter.RecurrenceIterator;
 //import com.google.ical.values.DateValueImpl;
 import com.google.ical.values.DateValue;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 //import javax.servlet.http.HttpSession;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.opencms.file.CmsProperty;
 import org.opencms.file.CmsPropertyDefinition;
 import org.opencms.relations.CmsCategory;
 import org.opencms.relations.CmsCategoryService;
@@ -128,17 +134,33 @@ public class EventEntry implements Comparable {
     private String html = null;
     /** The date display mode, one of EventEntry#TIME_DISPLAY_DATEONLY or EventEntry#TIME_DISPLAY_DATETIME */
     private String timeDisplay = null;
-    /** The date format used when formatting (date)timestamps. */
+    /** The pattern of the date format used when formatting (date)timestamps. */
+    private String dateFormatPattern = DEFAULT_DATE_FORMAT_PATTERN;
+    /** The locale of the date format used when formatting (date)timestamps, or null for the default locale. */
+    private Locale dateFormatLocale = null;
+    /** The date format used when formatting (date)timestamps, if explicitly set. Otherwise, a cached format is used, see {@link #getDateFormat()}. */
     private SimpleDateFormat sdf = null;
     //private StartDateComparator startDateComparator = null;
     /** The assigned categories, as read from the property {@link #PROPERTY_CATEGORIES}. */
     private String categoriesString = "";
+    /** The assigned categories, as a (shared) bit set, or null if not yet resolved. */
+    private BitSet categorySet = null;
     /** Flag indicating whether or not this event is a recurrence. */
     private boolean isRecurrenceEvent = false;
     /** This object's hash code, used in the override of java.lang.Object's hashCode() method. */
     private volatile int hashCode = 0;
     /** The time zone, defaults to {@link #DEFAULT_TIME_ZONE} until explicitly set. */
     private TimeZone tz = DEFAULT_TIME_ZONE;
+    /** Flag indicating whether or not the epoch day/month values below are computed. */
+    private volatile boolean epochValuesSet = false;
+    /** The epoch day of the start time (system default time zone). */
+    private long startEpochDay;
+    /** The epoch day of the end time, or of the start time if no end time is set. */
+    private long endEpochDay;
+    /** The epoch month of the start time. */
+    private long startEpochMonth;
+    /** The epoch month of the end time, or of the start time if no end time is set. */
+    private long endEpochMonth;
     
     /** The logger. */
     private static final Log LOG = LogFactory.getLog(EventEntry.class);
@@ -238,6 +260,24 @@ public class EventEntry implements Comparable {
         this.isRecurrenceEvent = isRecurrence;
     }
     
+    /**
+     * Creates a new event with only the start and end times set, for use by 
+     * subclasses that provide the remaining details themselves, by overriding 
+     * the corresponding getters.
+     * 
+     * @param start the start time.
+     * @param stop the end time.
+     * @param timeDisplay the time display mode, see {@link #TIME_DISPLAY_DATEONLY} and {@link #TIME_DISPLAY_DATETIME}.
+     * @param isRecurrence if true, the created event is flagged as being a recurrence.
+     * @see EventOccurrence
+     */
+    protected EventEntry(long start, long stop, String timeDisplay, boolean isRecurrence) {
+        this.start = start;
+        this.stop = stop;
+        this.timeDisplay = timeDisplay;
+        this.isRecurrenceEvent = isRecurrence;
+    }
+    
     /**
      * <strong>Recommended constructor</strong>: Creates a new event, using the 
      * given action element, and based on the given event resource.
@@ -247,16 +287,7 @@ public class EventEntry implements Comparable {
      */
     public EventEntry(CmsJspActionElement cms, CmsResource eventResource) {
         this(cms.getCmsObject(), eventResource);
-        
-        // Set native date format
-        try {
-            String nativeDateFormatPattern = cms.label("label.event.dateformat.".concat(this.timeDisplay));
-            this.sdf = new SimpleDateFormat(nativeDateFormatPattern, locale);
-        } catch (Exception e) {
-            if (LOG.isErrorEnabled()) {
-                LOG.error("Unable to set native localized date format for event. Fallback to default.", e);
-            }
-        }
+        setNativeDateFormat(cms);
     }
     
     /**
@@ -272,18 +303,50 @@ public class EventEntry implements Comparable {
      * @param eventResource the event resource.
      */
     public EventEntry(CmsObject cmso, CmsResource eventResource) {
+        this(cmso, eventResource, null);
+    }
+    
+    /**
+     * Creates a new event, using the given action element, and based on the 
+     * given event resource and its prefetched properties.
+     * 
+     * @param cms initialized action element.
+     * @param eventResource the event resource.
+     * @param properties the event resource's properties, as prefetched by {@link EventPropertyLoader}. If null, the properties are read.
+     * @see EventPropertyLoader#load(org.opencms.file.CmsObject, java.util.List) 
+     */
+    public EventEntry(CmsJspActionElement cms, CmsResource eventResource, List<CmsProperty> properties) {
+        this(cms.getCmsObject(), eventResource, properties);
+        setNativeDateFormat(cms);
+    }
+    
+    /**
+     * Creates a new event, using the given CmsObject, and based on the given 
+     * event resource and its prefetched properties.
+     * <p>
+     * Use {@link #EventEntry(org.opencms.jsp.CmsJspActionElement, org.opencms.file.CmsResource, java.util.List)} 
+     * instead, if at all possible.
+     * 
+     * @param cmso initialized cms object.
+     * @param eventResource the event resource.
+     * @param properties the event resource's properties, as prefetched by {@link EventPropertyLoader}. If null, the properties are read.
+     * @see EventPropertyLoader#load(org.opencms.file.CmsObject, java.util.List) 
+     */
+    public EventEntry(CmsObject cmso, CmsResource eventResource, List<CmsProperty> properties) {
         try {
-            this.title = cmso.readPropertyObject(eventResource, CmsPropertyDefinition.PROPERTY_TITLE, false).getValue("");
-            this.start = Long.valueOf(cmso.readPropertyObject(eventResource, PROPERTY_TIME_START, false).getValue("0"));
-            this.stop = Long.valueOf(cmso.readPropertyObject(eventResource, PROPERTY_TIME_END, false).getValue("0"));
-            this.description = cmso.readPropertyObject(eventResource, CmsPropertyDefinition.PROPERTY_DESCRIPTION, false).getValue("");
-            this.timeDisplay = cmso.readPropertyObject(eventResource, PROPERTY_TIME_DISPLAY, false).getValue(TIME_DISPLAY_DATETIME);
+            if (properties == null) {
+                properties = EventPropertyLoader.read(cmso, eventResource);
+            }
+            this.title = CmsProperty.get(CmsPropertyDefinition.PROPERTY_TITLE, properties).getValue("");
+            this.start = Long.valueOf(CmsProperty.get(PROPERTY_TIME_START, properties).getValue("0"));
+            this.stop = Long.valueOf(CmsProperty.get(PROPERTY_TIME_END, properties).getValue("0"));
+            this.description = CmsProperty.get(CmsPropertyDefinition.PROPERTY_DESCRIPTION, properties).getValue("");
+            this.timeDisplay = CmsProperty.get(PROPERTY_TIME_DISPLAY, properties).getValue(TIME_DISPLAY_DATETIME);
             this.locale = cmso.getRequestContext().getLocale();
             this.resourceId = eventResource.getResourceId();
             this.structureId = eventResource.getStructureId();
-            this.recurrenceRule = cmso.readPropertyObject(eventResource, PROPERTY_RECURRENCE_RULE, false).getValue("");
-            this.categoriesString = cmso.readPropertyObject(eventResource, PROPERTY_CATEGORIES, false).getValue("");
-            this.sdf = new SimpleDateFormat(DEFAULT_DATE_FORMAT_PATTERN);
+            this.recurrenceRule = CmsProperty.get(PROPERTY_RECURRENCE_RULE, properties).getValue("");
+            this.categoriesString = CmsProperty.get(PROPERTY_CATEGORIES, properties).getValue("");
         } catch (Exception e) {
             if (LOG.isErrorEnabled()) {
                 if (e instanceof CmsException) {
@@ -304,16 +367,20 @@ public class EventEntry implements Comparable {
     public EventEntry(EventEntry other) {
         this.start = other.start;
         this.stop = other.stop;
-        this.title = other.title;
-        this.description = other.description;
-        this.resourceId = other.resourceId;
-        this.structureId = other.structureId;
-        this.locale = other.locale;
+        this.title = other.getTitle();
+        this.description = other.getDescription();
+        this.resourceId = other.getResourceId();
+        this.structureId = other.getStructureId();
+        this.locale = other.getLocale();
         this.html = other.html;
-        this.sdf = other.sdf;
+        this.dateFormatPattern = other.dateFormatPattern;
+        this.dateFormatLocale = other.dateFormatLocale;
+        this.sdf = other.sdf == null ? null : (SimpleDateFormat)other.sdf.clone(); // Date formats are not thread-safe, don't share
         this.timeDisplay = other.timeDisplay;
-        this.recurrenceRule = other.recurrenceRule;
-        this.categoriesString = other.categoriesString;
+        this.recurrenceRule = other.getRecurrenceRule();
+        this.categoriesString = other.getCategoriesString();
+        this.isRecurrenceEvent = other.isRecurrenceEvent;
+        this.tz = other.tz;
     }
     /**
      * Gets the event's start time as a String of the configured format.<p>
@@ -323,7 +390,7 @@ public class EventEntry implements Comparable {
      * 
      * @return The event's start time as a String of the configured format.
      */
-    public String formatStartTime() { return sdf.format(new Date(this.getStartTime())); }
+    public String formatStartTime() { return getDateFormat().format(new Date(this.getStartTime())); }
     /**
      * Gets the event's end time as a String of the configured format.<p>
      * 
@@ -332,7 +399,7 @@ public class EventEntry implements Comparable {
      * 
      * @return The event's end time, in the configured format.
      */
-    public String formatEndTime() { return this.hasEndTime() ? sdf.format(new Date(this.getEndTime())) : null; }
+    public String formatEndTime() { return this.hasEndTime() ? getDateFormat().format(new Date(this.getEndTime())) : null; }
     
     /**
      * Determines if the event has a defined end time.<p>
@@ -385,18 +452,9 @@ public class EventEntry implements Comparable {
     public boolean isOneDayEvent() {        
         if (!this.hasEndTime())
             return true; // No end time, assume this is one-day event
-       
-        // Create two calendars, for start and stop
-        Calendar calStart = new GregorianCalendar();
-        calStart.setTimeInMillis(this.getStartTime());
-       
-        Calendar calEnd = new GregorianCalendar();
-        calEnd.setTimeInMillis(this.getEndTime());
         
-        // Compare the year, month and date of the two calendars, return the result
-        return (calStart.get(Calendar.YEAR) == calEnd.get(Calendar.YEAR) &&
-                calStart.get(Calendar.MONTH) == calEnd.get(Calendar.MONTH) &&
-                calStart.get(Calendar.DATE) == calEnd.get(Calendar.DATE));
+        computeEpochValues();
+        return startEpochDay == endEpochDay;
     }
     
     /** 
@@ -411,14 +469,8 @@ public class EventEntry implements Comparable {
         if (!this.hasEndTime())
             return true;
         
-        Calendar calStart = new GregorianCalendar();
-        calStart.setTimeInMillis(this.getStartTime());
-        
-        Calendar calEnd = new GregorianCalendar();
-        calEnd.setTimeInMillis(this.getEndTime());
-        
-        return calStart.get(Calendar.YEAR) == calEnd.get(Calendar.YEAR) && 
-                calStart.get(Calendar.MONTH) == calEnd.get(Calendar.MONTH);
+        computeEpochValues();
+        return startEpochMonth == endEpochMonth;
     }
     
     /** 
@@ -433,13 +485,8 @@ public class EventEntry implements Comparable {
         if (!this.hasEndTime())
             return true;
         
-        Calendar calStart = new GregorianCalendar();
-        calStart.setTimeInMillis(this.getStartTime());
-        
-        Calendar calEnd = new GregorianCalendar();
-        calEnd.setTimeInMillis(this.getEndTime());
-        
-        return calStart.get(Calendar.YEAR) == calEnd.get(Calendar.YEAR);
+        computeEpochValues();
+        return EventCalendarUtils.getYearOfEpochMonth(startEpochMonth) == EventCalendarUtils.getYearOfEpochMonth(endEpochMonth);
     }
     
     /**
@@ -460,17 +507,12 @@ public class EventEntry implements Comparable {
      * @return true if the event takes place in the "current" year.
      */
     public boolean isCurrentYearEvent(Date d) {
-        Calendar calStart = new GregorianCalendar();
-        calStart.setTimeInMillis(this.getStartTime());
-        
-        Calendar calNow = new GregorianCalendar();
-        calNow.setTimeInMillis(d.getTime());
+        computeEpochValues();
+        int year = EventCalendarUtils.getYearOfEpochMonth(EventCalendarUtils.getEpochMonth(EventCalendarUtils.getEpochDay(d.getTime())));
         
-        if (calStart.get(Calendar.YEAR) == calNow.get(Calendar.YEAR)) {
+        if (EventCalendarUtils.getYearOfEpochMonth(startEpochMonth) == year) {
             if (this.hasEndTime()) {
-                Calendar calEnd = new GregorianCalendar();
-                calEnd.setTimeInMillis(this.getEndTime());
-                return calEnd.get(Calendar.YEAR) == calNow.get(Calendar.YEAR);
+                return EventCalendarUtils.getYearOfEpochMonth(endEpochMonth) == year;
             }
             return true;
         }
@@ -478,12 +520,31 @@ public class EventEntry implements Comparable {
         return false;
     }
     
+    /**
+     * Computes the epoch day and month of this event's start and end times, 
+     * unless that has been done already.
+     * <p>
+     * The values are computed once, and then re-used by all the day, month 
+     * and year predicates. Only changing the time display mode (which 
+     * affects the start and end times) requires them to be re-computed.
+     */
+    private void computeEpochValues() {
+        if (!epochValuesSet) {
+            startEpochDay = EventCalendarUtils.getEpochDay(this.getStartTime());
+            endEpochDay = this.hasEndTime() ? EventCalendarUtils.getEpochDay(this.getEndTime()) : startEpochDay;
+            startEpochMonth = EventCalendarUtils.getEpochMonth(startEpochDay);
+            endEpochMonth = startEpochDay == endEpochDay ? startEpochMonth : EventCalendarUtils.getEpochMonth(endEpochDay);
+            epochValuesSet = true;
+        }
+    }
+    
     /**
      * Determines if this event has a set recurrence rule or not.
      * 
      * @return True if a recurrence rule exists, false if not.
      */
     public boolean hasRecurrenceRule() {
+        String recurrenceRule = getRecurrenceRule();
         if (recurrenceRule == null || recurrenceRule.isEmpty())
             return false;
         return true;
@@ -494,7 +555,7 @@ public class EventEntry implements Comparable {
      * 
      * @return true if the event is assigned at least 1 category.
      */
-    public boolean hasCategories() { return this.categoriesString != null && !this.categoriesString.trim().isEmpty(); }
+    public boolean hasCategories() { return this.getCategoriesString() != null && !this.getCategoriesString().trim().isEmpty(); }
     
     
     
@@ -576,14 +637,8 @@ public class EventEntry implements Comparable {
      * @return True if the event starts on the given date, false if not.
      */
     public boolean startsOnDate(Date d) {
-        Calendar dateCalendar = new GregorianCalendar();
-        dateCalendar.setTime(d);
-        Calendar eventCalendar = new GregorianCalendar();
-        eventCalendar.setTimeInMillis(this.getStartTime());
-        
-        return dateCalendar.get(Calendar.YEAR) == eventCalendar.get(Calendar.YEAR) &&
-                dateCalendar.get(Calendar.MONTH) == eventCalendar.get(Calendar.MONTH) &&
-                dateCalendar.get(Calendar.DATE) == eventCalendar.get(Calendar.DATE);
+        computeEpochValues();
+        return startEpochDay == EventCalendarUtils.getEpochDay(d.getTime());
     }
     
     /**
@@ -594,14 +649,8 @@ public class EventEntry implements Comparable {
      * @return 0 if the event ends on the given date, 1 if the event ends after the given date, -1 if the event ends prior to the given date.
      */
     public boolean endsOnDate(Date d) {
-        Calendar dateCalendar = new GregorianCalendar();
-        dateCalendar.setTime(d);
-        Calendar eventCalendar = new GregorianCalendar();
-        eventCalendar.setTimeInMillis(this.hasEndTime() ? this.getEndTime() : this.getStartTime());
-        
-        return dateCalendar.get(Calendar.YEAR) == eventCalendar.get(Calendar.YEAR) &&
-                dateCalendar.get(Calendar.MONTH) == eventCalendar.get(Calendar.MONTH) &&
-                dateCalendar.get(Calendar.DATE) == eventCalendar.get(Calendar.DATE);
+        computeEpochValues();
+        return endEpochDay == EventCalendarUtils.getEpochDay(d.getTime());
     }
     
     /**
@@ -829,6 +878,22 @@ public class EventEntry implements Comparable {
      */
     public String getCategoriesString() { return this.categoriesString; }
     
+    /**
+     * Gets the event's categories, as a bit set of category ids.
+     * <p>
+     * The bit set is shared by all events assigned the same categories, and 
+     * must not be modified.
+     * 
+     * @return the event's categories, as a bit set of category ids.
+     * @see CategoryDictionary#getCategories(java.lang.String) 
+     */
+    public BitSet getCategorySet() {
+        if (categorySet == null) {
+            categorySet = CategoryDictionary.getCategories(getCategoriesString());
+        }
+        return categorySet;
+    }
+    
     /**
      * Gets the event's locale.
      * 
@@ -863,76 +928,111 @@ public class EventEntry implements Comparable {
      * <p>
      * The returned HTML is rich snippets compatible. (Uses <code>time</code> 
      * tags with <code>startDate</code> and <code>endDate</code> attributes.)
+     * <p>
+     * The returned HTML is cached, and shared by all events with identical
+     * time span details.
      * 
      * @param cms An initialized CMS action element, needed to read labels.
      * @param now The "now" timestamp, used to determine if this event occurs in the "current" year.
      * @return The event's time span, as ready-to-use HTML.
      * @throws CmsException
+     * @see TimespanHtmlCache
      */
     public String getTimespanHtml(CmsJspActionElement cms, Date now) throws CmsException {
-	/*String loc = locale.toString();
-        SimpleDateFormat datetime = new SimpleDateFormat(cms.label("label.event.dateformat.datetime"), locale);
-        SimpleDateFormat dateonly = new SimpleDateFormat(cms.label("label.event.dateformat.dateonly"), locale);
-        SimpleDateFormat timeonly = new SimpleDateFormat(cms.label("label.event.dateformat.timeonly"), locale);
-        SimpleDateFormat month = new SimpleDateFormat(cms.label("label.event.dateformat.month"), locale);*/
-        SimpleDateFormat dmyt = new SimpleDateFormat(cms.label("label.event.dateformat.dmyt"), locale);
-        SimpleDateFormat dmy = new SimpleDateFormat(cms.label("label.event.dateformat.dmy"), locale);
-        SimpleDateFormat dm = new SimpleDateFormat(cms.label("label.event.dateformat.dm"), locale);
-        SimpleDateFormat dmt = new SimpleDateFormat(cms.label("label.event.dateformat.dmt"), locale);
-        SimpleDateFormat d = new SimpleDateFormat(cms.label("label.event.dateformat.d"), locale);
-        SimpleDateFormat t = new SimpleDateFormat(cms.label("label.event.dateformat.t"), locale);
-        SimpleDateFormat iso = this.getDatetimeAttributeFormat(locale);
-        
         boolean currentYearEvent = this.isCurrentYearEvent(now);
+        String key = TimespanHtmlCache.getKey(this, cms.getRequestContext().getLocale(), currentYearEvent);
+        String html = TimespanHtmlCache.get(key);
+        if (html == null) {
+            StringBuilder sb = new StringBuilder(192);
+            try {
+                appendTimespanHtml(cms, currentYearEvent, sb);
+            } catch (IOException ioe) {
+                throw new IllegalStateException(ioe); // Never thrown by StringBuilder
+            }
+            html = sb.toString();
+            TimespanHtmlCache.put(key, html);
+        }
+        return html;
+    }
+    
+    /**
+     * Appends the event's time span, optimized, as ready-to-use HTML, to the
+     * given output - typically the response writer.
+     * <p>
+     * The appended HTML is identical to that returned by 
+     * {@link #getTimespanHtml(org.opencms.jsp.CmsJspActionElement, java.util.Date)}.
+     * 
+     * @param cms An initialized CMS action element, needed to read labels.
+     * @param now The "now" timestamp, used to determine if this event occurs in the "current" year.
+     * @param out The output to append to.
+     * @throws CmsException
+     * @throws IOException If appending to the output fails.
+     */
+    public void appendTimespanHtml(CmsJspActionElement cms, Date now, Appendable out) throws CmsException, IOException {
+        out.append(getTimespanHtml(cms, now));
+    }
+    
+    /**
+     * Renders the event's time span, optimized, as ready-to-use HTML, and 
+     * appends it to the given output.
+     * 
+     * @param cms An initialized CMS action element, needed to read labels.
+     * @param currentYearEvent Whether or not this event occurs in the "current" year.
+     * @param out The output to append to.
+     * @throws CmsException
+     * @throws IOException If appending to the output fails.
+     * @see #getTimespanHtml(org.opencms.jsp.CmsJspActionElement, java.util.Date) 
+     */
+    private void appendTimespanHtml(CmsJspActionElement cms, boolean currentYearEvent, Appendable out) throws CmsException, IOException {
+        Locale locale = getLocale();
+        // Shared (per thread) formats - don't modify
+        SimpleDateFormat dmyt = DateFormatCache.getFormat(cms, "dmyt", locale, null);
+        SimpleDateFormat dmy = DateFormatCache.getFormat(cms, "dmy", locale, null);
+        SimpleDateFormat dm = DateFormatCache.getFormat(cms, "dm", locale, null);
+        SimpleDateFormat dmt = DateFormatCache.getFormat(cms, "dmt", locale, null);
+        SimpleDateFormat d = DateFormatCache.getFormat(cms, "d", locale, null);
+        SimpleDateFormat t = DateFormatCache.getFormat(cms, "t", locale, null);
+        SimpleDateFormat iso = this.getSharedDatetimeAttributeFormat(locale);
         
         // Select initial date format
         SimpleDateFormat df = this.isDisplayDateOnly() ? (currentYearEvent ? dm : dmy) : (currentYearEvent ? dmt : dmyt);
-        
-        String begins = null;
-        String ends = null;
-        String beginsIso = null;
-        String endsIso = null;
-        try {
-            SimpleDateFormat beginFormat = df;
-            beginsIso = iso.format(new Date(this.getStartTime()));
-            
-            // If there is an end-time
-            if (this.hasEndTime()) {
-                SimpleDateFormat endFormat = df;
-                
-                if (this.isOneDayEvent()) {
-                    if (!this.isDisplayDateOnly()) {
-                        // End time is on the same day as begin time, format only the hour/minute
-                        endFormat = t;
-                    }
-                } else {
-                    // Not one-day event, but maybe same month?
-                    if (this.isOneMonthEvent() && this.isDisplayDateOnly()) {
-                        endFormat = currentYearEvent ? dm : dmy;
-                        beginFormat = d;
-                    }
+        SimpleDateFormat beginFormat = df;
+        SimpleDateFormat endFormat = df;
+        if (this.hasEndTime()) {
+            if (this.isOneDayEvent()) {
+                if (!this.isDisplayDateOnly()) {
+                    // End time is on the same day as begin time, format only the hour/minute
+                    endFormat = t;
+                }
+            } else {
+                // Not one-day event, but maybe same month?
+                if (this.isOneMonthEvent() && this.isDisplayDateOnly()) {
+                    endFormat = currentYearEvent ? dm : dmy;
+                    beginFormat = d;
                 }
-                
-                ends = endFormat.format(new Date(this.getEndTime())).replaceAll("\\s", "&nbsp;");
-                endsIso = iso.format(new Date(this.getEndTime()));
             }
-            begins = beginFormat.format(new Date(this.getStartTime())).replaceAll("\\s", "&nbsp;");
-        } catch (NumberFormatException nfe) {
-            // Keep ends=null
         }
         
-        String s = "";
+        Date date = new Date(this.getStartTime());
+        StringBuffer buf = new StringBuffer(32);
+        FieldPosition pos = new FieldPosition(0);
         
-        s += "<time itemprop=\"startDate\" datetime=\"" + beginsIso + "\">" + begins + "</time>";
+        out.append("<time itemprop=\"startDate\" datetime=\"").append(iso.format(date, buf, pos)).append("\">");
+        buf.setLength(0);
+        boolean beginsHasSpace = appendNonBreaking(beginFormat.format(date, buf, pos), out);
+        out.append("</time>");
         
-        if (ends != null) {
+        if (this.hasEndTime()) {
+            date.setTime(this.getEndTime());
+            buf.setLength(0);
+            endFormat.format(date, buf, pos);
             // Sometimes we want to use a space, sometimes not...
-            String spaceOrNot = begins.contains("nbsp") && ends.contains("nbsp") ? " " : "";
-            s += spaceOrNot + "&ndash;" + spaceOrNot 
-                    + "<time itemprop=\"endDate\" datetime=\"" + endsIso + "\">" + ends + "</time>";
+            String spaceOrNot = beginsHasSpace && hasWhitespace(buf) ? " " : "";
+            out.append(spaceOrNot).append("&ndash;").append(spaceOrNot);
+            out.append("<time itemprop=\"endDate\" datetime=\"").append(iso.format(date, new StringBuffer(32), pos)).append("\">");
+            appendNonBreaking(buf, out);
+            out.append("</time>");
         }
-        
-        return s;
     }
     
     /**
@@ -965,45 +1065,110 @@ public class EventEntry implements Comparable {
      * @return the event's time span, as ready-to-use HTML.
      * @throws CmsException
      * @see #getTimespanHtml(org.opencms.jsp.CmsJspActionElement, java.util.Date) 
+     * @see #appendFullTimespanHtml(org.opencms.jsp.CmsJspActionElement, java.lang.Appendable) 
      */
     public String getFullTimespanHtml(CmsJspActionElement cms) throws CmsException {
-        //SimpleDateFormat datetime = new SimpleDateFormat(cms.label("label.event.dateformat.datetime"), locale);
-        //SimpleDateFormat dateonly = new SimpleDateFormat(cms.label("label.event.dateformat.dateonly"), locale);
-        SimpleDateFormat dfIso = getDatetimeAttributeFormat(locale);
-        
-        // Select date format
-        SimpleDateFormat df = sdf != null ? sdf : new SimpleDateFormat(cms.label("label.event.dateformat.").concat(this.timeDisplay), locale);
-        //SimpleDateFormat df = isDisplayDateOnly() ? dateonly : datetime;
-        
-        String begins = null;
-        String ends = null;
-        String beginsIso = null;
-        String endsIso = null;
+        StringBuilder sb = new StringBuilder(192);
         try {
-            begins = df.format(new Date(getStartTime())).replaceAll("\\s", "&nbsp;");
-            beginsIso = dfIso.format(new Date(getStartTime()));
-            // If there is an end-time
-            if (this.hasEndTime()) {
-                if (this.isOneDayEvent()) {
-                    SimpleDateFormat timeonly = new SimpleDateFormat(cms.label("label.event.dateformat.timeonly"), locale);
-                    // End time is on the same day as begin time, format only the hour/minute
-                    ends = timeonly.format(new Date(getEndTime())).replaceAll("\\s", "&nbsp;");
-                } else {
-                    ends = df.format(new Date(getEndTime())).replaceAll("\\s", "&nbsp;");
-                }
-                endsIso = dfIso.format(new Date(getEndTime()));
-            }
-        } catch (NumberFormatException nfe) {
-            // Keep ends=null
+            appendFullTimespanHtml(cms, sb);
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe); // Never thrown by StringBuilder
         }
+        return sb.toString();
+    }
+    
+    /**
+     * Appends the event's time span, with full data, as ready-to-use HTML, to
+     * the given output - typically the response writer.
+     * <p>
+     * The appended HTML is identical to that returned by 
+     * {@link #getFullTimespanHtml(org.opencms.jsp.CmsJspActionElement)}.
+     * 
+     * @param cms initialized action element.
+     * @param out the output to append to.
+     * @throws CmsException
+     * @throws IOException if appending to the output fails.
+     */
+    public void appendFullTimespanHtml(CmsJspActionElement cms, Appendable out) throws CmsException, IOException {
+        Locale locale = getLocale();
+        SimpleDateFormat dfIso = getSharedDatetimeAttributeFormat(locale);
         
-        String s = "";
+        // Select date format
+        SimpleDateFormat df = getDateFormat();
+        
+        Date date = new Date(getStartTime());
+        StringBuffer buf = new StringBuffer(32);
+        FieldPosition pos = new FieldPosition(0);
         
-        s += "<time itemprop=\"startDate\" datetime=\"" + beginsIso + "\">" + begins + "</time>";
-        if (ends != null)
-            s += " &ndash; <time itemprop=\"endDate\" datetime=\"" + endsIso + "\">" + ends + "</time>";
+        out.append("<time itemprop=\"startDate\" datetime=\"").append(dfIso.format(date, buf, pos)).append("\">");
+        buf.setLength(0);
+        appendNonBreaking(df.format(date, buf, pos), out);
+        out.append("</time>");
         
-        return s;
+        // If there is an end-time
+        if (this.hasEndTime()) {
+            date.setTime(getEndTime());
+            buf.setLength(0);
+            out.append(" &ndash; <time itemprop=\"endDate\" datetime=\"").append(dfIso.format(date, buf, pos)).append("\">");
+            buf.setLength(0);
+            // If the end time is on the same day as begin time, format only the hour/minute
+            SimpleDateFormat endFormat = this.isOneDayEvent() ? DateFormatCache.getFormat(cms, "timeonly", locale, null) : df;
+            appendNonBreaking(endFormat.format(date, buf, pos), out);
+            out.append("</time>");
+        }
+    }
+    
+    /**
+     * Appends the given text to the given output, with all whitespace 
+     * replaced by non-breaking spaces.
+     * <p>
+     * Equivalent to appending <code>s.replaceAll("\\s", "&amp;nbsp;")</code>,
+     * but done in a single pass, without a regular expression or any 
+     * intermediate strings.
+     * 
+     * @param s The text, typically a formatted date.
+     * @param out The output to append to.
+     * @return True if any whitespace was replaced, false if not.
+     * @throws IOException If appending to the output fails.
+     */
+    private static boolean appendNonBreaking(CharSequence s, Appendable out) throws IOException {
+        boolean replaced = false;
+        int from = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (isWhitespace(s.charAt(i))) {
+                out.append(s, from, i).append("&nbsp;");
+                from = i + 1;
+                replaced = true;
+            }
+        }
+        out.append(s, from, s.length());
+        return replaced;
+    }
+    
+    /**
+     * Determines if the given text contains any whitespace.
+     * 
+     * @param s The text.
+     * @return True if the given text contains any whitespace, false if not.
+     */
+    private static boolean hasWhitespace(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (isWhitespace(s.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Determines if the given character is whitespace, as defined by the 
+     * regular expression <code>\s</code>.
+     * 
+     * @param c The character.
+     * @return True if the given character is whitespace, false if not.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
     }
     
     /**
@@ -1028,6 +1193,22 @@ public class EventEntry implements Comparable {
         return dfIso;
     }
     
+    /**
+     * Gets the calling thread's shared date format for this event's 
+     * "datetime" attribute.
+     * <p>
+     * The returned format is identical to the one returned by 
+     * {@link #getDatetimeAttributeFormat(java.util.Locale)}, but must not be 
+     * modified or used by any other thread.
+     * 
+     * @param locale The locale to use in the returned date format.
+     * @return The calling thread's shared date format for this event's "datetime" attribute.
+     * @see DateFormatCache#getFormat(java.lang.String, java.util.Locale, java.util.TimeZone) 
+     */
+    private SimpleDateFormat getSharedDatetimeAttributeFormat(Locale locale) {
+        return DateFormatCache.getFormat(this.isDisplayDateOnly() ? DATE_FORMAT_PATTERN_ISO_SHORT : DATE_FORMAT_PATTERN_ISO_FULL, locale, tz);
+    }
+    
     /**
      * Sets the date format, based on the given pattern.<p>
      * 
@@ -1037,7 +1218,24 @@ public class EventEntry implements Comparable {
      * @see java.text.SimpleDateFormat
      */
     public EventEntry setDateFormat(String pattern) {
-        sdf = new SimpleDateFormat(pattern);
+        return setDateFormat(pattern, null);
+    }
+    
+    /**
+     * Sets the date format, based on the given pattern and locale.<p>
+     * 
+     * @param pattern the date format pattern.
+     * @param locale the date format locale, or null for the default locale.
+     * @return This instance, updated.
+     * @throws IllegalArgumentException if the pattern is invalid.
+     * 
+     * @see java.text.SimpleDateFormat
+     */
+    public EventEntry setDateFormat(String pattern, Locale locale) {
+        DateFormatCache.getFormat(pattern, locale == null ? Locale.getDefault() : locale, null); // Validate
+        this.dateFormatPattern = pattern;
+        this.dateFormatLocale = locale;
+        this.sdf = null;
         return this;
     }
     
@@ -1054,6 +1252,43 @@ public class EventEntry implements Comparable {
         return this;
     }
     
+    /**
+     * Sets the date format to the native, localized format for this event's
+     * time display mode, as read from the labels.
+     * <p>
+     * If the native format cannot be read, the current date format is kept.
+     *
+     * @param cms Initialized action element, needed to read labels.
+     * @return This instance, updated.
+     */
+    protected EventEntry setNativeDateFormat(CmsJspActionElement cms) {
+        try {
+            setDateFormat(DateFormatCache.getPattern(cms, this.timeDisplay), getLocale());
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Unable to set native localized date format for event. Fallback to default.", e);
+            }
+        }
+        return this;
+    }
+    
+    /**
+     * Gets the date format used when formatting (date)timestamps.
+     * <p>
+     * Unless a date format instance was explicitly set, this is the calling 
+     * thread's cached format for the configured pattern and locale, which 
+     * must not be modified or used by any other thread.
+     * 
+     * @return The date format used when formatting (date)timestamps.
+     * @see DateFormatCache#getFormat(java.lang.String, java.util.Locale, java.util.TimeZone) 
+     */
+    private SimpleDateFormat getDateFormat() {
+        if (sdf != null) {
+            return sdf;
+        }
+        return DateFormatCache.getFormat(dateFormatPattern, dateFormatLocale == null ? Locale.getDefault() : dateFormatLocale, null);
+    }
+
     /**
      * Sets the HTML code content.<p>
      * 
@@ -1085,12 +1320,15 @@ public class EventEntry implements Comparable {
         } else {
             this.timeDisplay = TIME_DISPLAY_DATETIME;
         }
+        this.epochValuesSet = false; // Start and end times may have changed
         return this;
     }
     
     /**
      * Gets an iterator for the recurrences of this event, or <code>null</code> 
      * if this event has no recurrence rule.
+     * <p>
+     * The recurrence rule is parsed only once, see {@link RecurrenceRuleCache}.
      * 
      * @return An an iterator for the recurrences of this event, or <code>null</code> if none.
      * @throws java.text.ParseException 
@@ -1105,7 +1343,7 @@ public class EventEntry implements Comparable {
         // Get the initial begin timestamp
         Date initialStartTime = new Date(getStartTime());
         // Get the iterator for the recurrence dates, using the recurrence rule (RRULE) found on the event
-        RecurrenceIterator iRecur = RecurrenceIteratorFactory.createRecurrenceIterator(rRule
+        RecurrenceIterator iRecur = RecurrenceRuleCache.createRecurrenceIterator(rRule
                                                                                         , EventCalendarUtils.convertToDateValue(initialStartTime)
                                                                                         , tz
                                                                                         );
@@ -1118,9 +1356,12 @@ public class EventEntry implements Comparable {
      * <p>
      * If no recurrence rule is set, the regular start time is returned.
      * <p>
-     * Otherwise, this method will iterate over recurrences and return the first
-     * encountered start date that is not after the given point in time. If no 
-     * such start date exists, the regular start time is returned.
+     * Otherwise, this method will find the last recurrence start date that is 
+     * not after the given point in time, by jumping close to it rather than 
+     * iterating over all recurrences (see {@link #getLastRecurrenceStartDate(java.util.Date)}).
+     * There is no limit on how far ahead of the initial start date the given 
+     * point in time may be. If no such start date exists, the regular start 
+     * time is returned.
      * 
      * @param pointInTime The point in time to use as a reference point.
      * @return This event's closest start date before or on the given point in time, or, if no such start date exists, the regular start date.
@@ -1134,24 +1375,7 @@ public class EventEntry implements Comparable {
             //Date markerDate = convertToDate(marker); // The marker date
             Date markerDate = pointInTime; // The marker date
             Date endMarkerDate = new Date(EventCalendarUtils.getDateEndCal(markerDate).getTimeInMillis()); // Timestamp: The end of the marker date
-            Date closest = null;
-            
-            // Safety 
-            int iterations = 0;
-            int maxIterations = 1000;
-            
-            // Loop recurrences
-            RecurrenceIterator iRecurrences = getRecurrenceIterator();
-            while (iRecurrences.hasNext() && iterations++ < maxIterations) {
-                Date recurrenceStartDate = EventCalendarUtils.convertToDate( (DateValue)iRecurrences.next() );
-                if (recurrenceStartDate.after(endMarkerDate)) // Is the recurrence start date after the marker date?
-                    break; // Yes: break
-                /*if (event.hasEndTime() && !event.isOneDayEvent()) { // Is the recurrence a multiple-day event?
-                    if (new Date(recStartDate.getTime() + (event.getEndTime() - event.getStartTime())).after(endMarkerDate)) // Is the recurrence end time after the 
-                        break;
-                }*/
-                closest = recurrenceStartDate; // No - then so far it has the closest start date
-            }
+            Date closest = getLastRecurrenceStartDate(endMarkerDate);
             
             if (closest != null) {
                 return closest; // Found a date in the past, return it
@@ -1163,6 +1387,94 @@ public class EventEntry implements Comparable {
         }
     }
     
+    /**
+     * Gets the start date of the last recurrence that starts before or on the 
+     * given point in time.
+     * <p>
+     * Instead of iterating over all recurrences from the initial start date, 
+     * this method jumps (using {@link RecurrenceIterator#advanceTo(com.google.ical.values.DateValue)}) 
+     * to a window of days just before the given point in time, and scans 
+     * only the recurrences inside that window. If the window holds no 
+     * recurrences, its size is doubled, until it reaches the initial start 
+     * date. The initial window size is the period of the recurrence rule, if 
+     * it is a simple one (see {@link #getRecurrencePeriodDays()}), so that 
+     * for such rules, a single jump is normally enough.
+     * 
+     * @param pointInTime The point in time.
+     * @return The start date of the last recurrence that starts before or on the given point in time, or <code>null</code> if none.
+     * @throws java.text.ParseException If the recurrence rule is invalid.
+     */
+    private Date getLastRecurrenceStartDate(Date pointInTime) throws java.text.ParseException {
+        Date initialStartDate = new Date(this.getStartTime());
+        Calendar windowStartCal = new GregorianCalendar(tz, getLocale() == null ? Locale.getDefault() : getLocale());
+        int windowDays = getRecurrencePeriodDays() + 1;
+        while (true) {
+            windowStartCal.setTime(pointInTime);
+            windowStartCal.add(Calendar.DATE, -windowDays);
+            boolean fromInitialStart = !windowStartCal.getTime().after(initialStartDate);
+            
+            RecurrenceIterator iRecurrences = getRecurrenceIterator();
+            if (!fromInitialStart) {
+                iRecurrences.advanceTo(EventCalendarUtils.convertToDateValue(windowStartCal.getTime()));
+            }
+            Date closest = null;
+            while (iRecurrences.hasNext()) {
+                Date recurrenceStartDate = EventCalendarUtils.convertToDate( (DateValue)iRecurrences.next() );
+                if (recurrenceStartDate.after(pointInTime)) // Is the recurrence start date after the point in time?
+                    break; // Yes: break
+                closest = recurrenceStartDate; // No - then so far it has the closest start date
+            }
+            if (closest != null || fromInitialStart) {
+                return closest;
+            }
+            windowDays = windowDays > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : windowDays * 2;
+        }
+    }
+    
+    /**
+     * Gets the period, in days, of this event's recurrence rule, if it is a 
+     * simple rule - that is, a rule defined only by FREQ, and optionally 
+     * INTERVAL, COUNT, UNTIL and WKST.
+     * <p>
+     * For a simple rule, any span of this many days (after the initial start
+     * date, and before the end of the recurrences) holds a recurrence.
+     * 
+     * @return The period of this event's recurrence rule, in days, or 1 if the rule is not a simple one.
+     */
+    private int getRecurrencePeriodDays() {
+        int unit = 0;
+        int interval = 1;
+        for (String part : getRecurrenceRule().toUpperCase().split(";")) {
+            int i = part.indexOf('=');
+            if (i < 0) {
+                continue;
+            }
+            String name = part.substring(0, i).trim();
+            String value = part.substring(i + 1).trim();
+            if ("FREQ".equals(name)) {
+                if ("DAILY".equals(value))
+                    unit = 1;
+                else if ("WEEKLY".equals(value))
+                    unit = 7;
+                else if ("MONTHLY".equals(value))
+                    unit = 31;
+                else if ("YEARLY".equals(value))
+                    unit = 366;
+                else 
+                    return 1;
+            } else if ("INTERVAL".equals(name)) {
+                try {
+                    interval = Math.max(1, Integer.parseInt(value));
+                } catch (NumberFormatException e) {
+                    return 1;
+                }
+            } else if (!"COUNT".equals(name) && !"UNTIL".equals(name) && !"WKST".equals(name)) {
+                return 1; // BYxxx or other parts: Not a simple rule
+            }
+        }
+        return unit == 0 ? 1 : (int)Math.min(Integer.MAX_VALUE / 4, (long)unit * interval);
+    }
+    
     /**
      * Gets the event's begin time, relative to the given point in time.
      * <p>
@@ -1205,7 +1517,7 @@ public class EventEntry implements Comparable {
             if (iRecur.hasNext()) {
                 // Get the event's "next" recurring date (could be "today")
                 DateValue dv = (DateValue)iRecur.next();
-                Calendar cal = new GregorianCalendar(tz, locale);
+                Calendar cal = new GregorianCalendar(tz, getLocale());
                 // First, set the time to the *initial* start time, so that any "event begin" clock time is preserved
                 cal.setTime(initialStartTime);
                 // Then update year, month and day
@@ -1294,76 +1606,147 @@ public class EventEntry implements Comparable {
      */
     public List<EventEntry> getRecurrences(long start, long end, int limit) {
         List<EventEntry> recurrences = new ArrayList<EventEntry>();
+        Iterator<EventEntry> iRecurrences = iterateRecurrences(start, end);
+        while (iRecurrences.hasNext() && recurrences.size() < limit) {
+            recurrences.add(iRecurrences.next());
+        }
+        return recurrences;
+    }
+    
+    /**
+     * Gets a lazy iterator over the recurrences of this event, within the time 
+     * frame specified by the given start and end values.
+     * <p>
+     * The recurrences are produced one at a time, by ascending start time, so 
+     * the iterator can be abandoned at any point without having expanded the 
+     * remaining recurrences. This makes it suitable for merging the 
+     * recurrences of many events, e.g. to find the next N occurrences.
+     * 
+     * @param start the time frame start.
+     * @param end the time frame end.
+     * @return a lazy iterator over the recurrences of this event within the given time frame (empty if none).
+     * @see #getRecurrences(long, long, int)
+     */
+    public Iterator<EventEntry> iterateRecurrences(long start, long end) {
+        return new OccurrenceIterator(start, end);
+    }
+    
+    /**
+     * Lazy iterator over the recurrences of this event, within a time frame.
+     */
+    private class OccurrenceIterator implements Iterator<EventEntry> {
+        /** The time frame start. */
+        private final long start;
+        /** The time frame end. */
+        private final long end;
+        /** The recurrence dates, or <code>null</code> if none (or no more). */
+        private RecurrenceIterator iRecur = null;
+        /** The event's initial start time. */
+        private final long initialStartTime;
+        /** One calendar for all recurrences, reset to the initial start time on each iteration. */
+        private final Calendar cal;
+        /** The next recurrence to return, if already found. */
+        private EventEntry next = null;
         
-        if (this.hasRecurrenceRule()) {
-
-            try {
-                RecurrenceIterator iRecur = getRecurrenceIterator();
-                
-                if (!this.isOneDayEvent() && this.hasEndTime()) {
-                    // Advance to the closest start date in the past (relative to the current workplace time)
-                    iRecur.advanceTo(EventCalendarUtils.convertToDateValue(getClosestPastStartDate(new Date(start))));
-                } else { // One-day event (or no end time specified)
-                    // Advance to the point in time
-                    iRecur.advanceTo( EventCalendarUtils.convertToDateValue(new Date(start)) );
+        /**
+         * Creates a new iterator over the recurrences within the given time 
+         * frame.
+         * 
+         * @param start the time frame start.
+         * @param end the time frame end.
+         */
+        private OccurrenceIterator(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.initialStartTime = getStartTime();
+            this.cal = new GregorianCalendar(tz, getLocale() == null ? Locale.getDefault() : getLocale());
+            if (hasRecurrenceRule()) {
+                try {
+                    iRecur = getRecurrenceIterator();
+                    if (!isOneDayEvent() && hasEndTime()) {
+                        // Advance to the closest start date in the past (relative to the current workplace time)
+                        iRecur.advanceTo(EventCalendarUtils.convertToDateValue(getClosestPastStartDate(new Date(start))));
+                    } else { // One-day event (or no end time specified)
+                        // Advance to the point in time
+                        iRecur.advanceTo( EventCalendarUtils.convertToDateValue(new Date(start)) );
+                    }
+                } catch (Exception ee) {
+                    iRecur = null;
                 }
-
-                while (iRecur.hasNext() && recurrences.size() < limit) {
+            }
+        }
+        
+        /**
+         * Finds the next recurrence that overlaps the time frame.
+         * 
+         * @return the next recurrence that overlaps the time frame, or <code>null</code> if none.
+         */
+        private EventEntry findNext() {
+            try {
+                while (iRecur != null && iRecur.hasNext()) {
                     // Get the event's "next" recurring date (could be "today")
                     DateValue dv = (DateValue)iRecur.next();
-                    Calendar cal = new GregorianCalendar(tz, locale);
                     // First, set the time to the *initial* start time, so that any "event begin" clock time is preserved
-                    cal.setTime(new Date(this.getStartTime()));
+                    cal.setTimeInMillis(initialStartTime);
                     // Then update year, month and day
                     cal.set(dv.year(), dv.month()-1, dv.day());
                     
-                    // Set the Date instance representing the "next" beginning date
-                    Date nextBeginTime = cal.getTime();
+                    // The "next" beginning time
+                    long nextBeginTime = cal.getTimeInMillis();
                     
-                    if (nextBeginTime.getTime() > end) {
-                        break; // Break out of the while-loop - we're out of range
+                    if (nextBeginTime > end) {
+                        break; // We're out of range
                     }
                     
-                    // Set the subsequent end time, according to the "next" begin date
-                    Date nextEndTime = this.getEnd(nextBeginTime);
-                    
                     // If the recurring event's "original" start time is before the calculated "next" begin time, we're dealing with a recurrence
-                    boolean isRecurrence = this.getStartTime() < nextBeginTime.getTime();
-                    if (isRecurrence) {
-                        try {
-                            // Create the recurrence event (it's identical to the original event, but with begin/end dates adjusted)
-                            EventEntry recurrence = new EventEntry(nextBeginTime.getTime()
-                                                    , nextEndTime.getTime()
-                                                    , this.getTitle()
-                                                    , this.getDescription()
-                                                    , this.getTimeDisplayMode()
-                                                    , this.getLocale()
-                                                    , this.getResourceId()
-                                                    , this.getStructureId()
-                                                    , this.getRecurrenceRule()
-                                                    , this.getCategoriesString()
-                                                    , true); // "is recurrence event"
-                            //if (DEBUG) out.println("<p>Recurrence event '" + recurrence.getTitle() + "' created.</p>");
-                            // If the timespan of the recurrence event overlaps today ...
-                            if (recurrence.overlapsRange(start, end)) {
-                                //if (DEBUG) out.println("<p>Recurrence event '" + recurrence.getTitle() + "' DOES overlap current time: adding it.</p>");
-                                recurrences.add(recurrence);
-                                if (recurrences.size() >= limit) {
-                                    break;
-                                }
-                            } else {
-                                //if (DEBUG) out.println("<p>Recurrence event '" + recurrence.getTitle() + "' does NOT overlap current time: ignoring it.</p>");
-                            }
-                        } catch (Exception e) {
-                            //out.println("<!-- Error processing recurrence of event: " + e.getMessage() + " -->");
+                    if (initialStartTime < nextBeginTime) {
+                        // Set the subsequent end time, according to the "next" begin time (see getEnd(Date))
+                        long nextEndTime = hasEndTime() ? getEndTime() + (nextBeginTime - initialStartTime) : 0;
+                        // Create the recurrence event (it's identical to the original event, but with begin/end times adjusted)
+                        EventEntry recurrence = new EventOccurrence(EventEntry.this, nextBeginTime, nextEndTime);
+                        // If the timespan of the recurrence event overlaps the time frame ...
+                        if (recurrence.overlapsRange(start, end)) {
+                            return recurrence;
                         }
                     }
                 }
-            } catch (Exception ee) {
-                //out.println("<!-- ERROR on event '" + recurringEventResource.getRootPath() + "': " + ee.getMessage() + " -->");
+            } catch (Exception e) {
+                //out.println("<!-- Error processing recurrence of event: " + e.getMessage() + " -->");
             }
+            iRecur = null;
+            return null;
+        }
+        
+        /**
+         * @see java.util.Iterator#hasNext() 
+         */
+        public boolean hasNext() {
+            if (next == null) {
+                next = findNext();
+            }
+            return next != null;
+        }
+        
+        /**
+         * @see java.util.Iterator#next() 
+         */
+        public EventEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            EventEntry e = next;
+            next = null;
+            return e;
+        }
+        
+        /**
+         * Not supported.
+         * 
+         * @throws UnsupportedOperationException Always.
+         */
+        public void remove() {
+            throw new UnsupportedOperationException("Removing recurrences is not supported.");
         }
-        return recurrences;
     }
     
     /**
@@ -1401,10 +1784,10 @@ public class EventEntry implements Comparable {
         else if (this.start > ((EventEntry)that).start)
             return 1;
         else { // Same start date
-            if (this.stop == ((EventEntry)that).stop && this.title.equals(((EventEntry)that).title)) // Same end time & title, assume identical
+            if (this.stop == ((EventEntry)that).stop && this.getTitle().equals(((EventEntry)that).getTitle())) // Same end time & title, assume identical
                 return 0;
             else 
-                return (this.title.compareTo(((EventEntry)that).title)); // Not same end time and/or title, return title comparison
+                return (this.getTitle().compareTo(((EventEntry)that).getTitle())); // Not same end time and/or title, return title comparison
         }
     }
     
@@ -1431,10 +1814,10 @@ public class EventEntry implements Comparable {
         else if (this.start > ((EventEntry)that).start)
             return false;
         else { // Same start date
-            if (this.stop == ((EventEntry)that).stop && this.title.equals(((EventEntry)that).title)) // Same end time & title, assume identical
+            if (this.stop == ((EventEntry)that).stop && this.getTitle().equals(((EventEntry)that).getTitle())) // Same end time & title, assume identical
                 return true;
             else 
-                return (this.title.equals(((EventEntry)that).title)); // Not same end time and/or title, return title comparison
+                return (this.getTitle().equals(((EventEntry)that).getTitle())); // Not same end time and/or title, return title comparison
         }
     }
     
@@ -1442,8 +1825,9 @@ public class EventEntry implements Comparable {
      * Override of java.lang.Object's hashCode(), implemented to facilitate 
      * equal codes for equal objects.
      * <p>
-     * Equality is determined by looking at start time, end time and title. Two 
-     * events with identical values for these attributes are considered equal.
+     * Equality is determined by looking at start time and title (see 
+     * {@link #equals(java.lang.Object)}), so only these attributes are used 
+     * here.
      * 
      * @return The object hash code
      */
@@ -1452,9 +1836,9 @@ public class EventEntry implements Comparable {
         if (hashCode == 0) {
             final int multiplier = 23;
             int code = 133;
-            code = multiplier * code + Integer.valueOf(String.valueOf(start));
-            code = multiplier * code + Integer.valueOf(String.valueOf(stop));
-            code = multiplier * code + title.hashCode();
+            code = multiplier * code + (int)(start ^ (start >>> 32));
+            String title = getTitle();
+            code = multiplier * code + (title == null ? 0 : title.hashCode());
             hashCode = code;
         }
         return hashCode;
@@ -0,0 +1,497 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.opencms.db.CmsPublishedResource;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsProperty;
+import org.opencms.file.CmsResource;
+import org.opencms.file.CmsResourceFilter;
+import org.opencms.main.CmsEvent;
+import org.opencms.main.CmsException;
+import org.opencms.main.CmsLog;
+import org.opencms.main.I_CmsEventListener;
+import org.opencms.main.OpenCms;
+import org.opencms.util.CmsUUID;
+
+/**
+ * A resident, in-memory index of all event resources in the online project.
+ * <p>
+ * The index holds an {@link EventRecord} for each event, keyed by structure
+ * ID and organized in an {@link EventIntervalTree}, so that time range
+ * queries (including folder and category filters) can be answered without
+ * reading from the VFS.
+ * <p>
+ * The index is populated from the VFS on first use, and shared across
+ * requests. After that, it is maintained incrementally: Whenever a project
+ * is published, only the published resources are re-read, and their records
+ * are updated or removed. (Published folders are handled by re-reading all
+ * events inside them, which covers moved folders.) Resource modification
+ * events are ignored, as they concern offline changes that are not online
+ * yet. The interval tree is re-created from the records in memory on the
+ * first query after a publish. The entire index is dropped only when the
+ * caches are cleared.
+ * <p>
+ * Whenever the index is updated or dropped, the {@link EventResultCache} is
+ * cleared as well, so that no cached result can outlive the index state it
+ * was collected from.
+ * <p>
+ * Because the index is built as the guest user, it is only queried directly
+ * to serve requests by the guest user in the online project - see
+ * {@link #getInstance(org.opencms.file.CmsObject)}. Other requests can still
+ * use the parsed records via {@link #getRecord(org.opencms.file.CmsObject, org.opencms.file.CmsResource)},
+ * which saves re-reading the event properties.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class EventIndex {
+
+    /** The log object for this class. */
+    private static final Log LOG = CmsLog.getLog(EventIndex.class);
+    /** The currently active index, if any. */
+    private static volatile EventIndex instance = null;
+    /** Flag indicating whether or not the event listener is registered. */
+    private static boolean listenerRegistered = false;
+    /** Lock object used when building the index. */
+    private static final Object LOCK = new Object();
+    /** The maximum number of attempts at building the index, when it is outdated by events during the build. */
+    private static final int MAX_BUILD_ATTEMPTS = 3;
+    /** The event generation, incremented on every handled event, so that builds overlapping an event can be detected. */
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    /** The event records, keyed by structure ID. */
+    private final Map<CmsUUID, EventRecord> records;
+    /** The interval tree holding all event records, or null if it must be re-created. */
+    private volatile EventIntervalTree tree;
+
+    /**
+     * Creates a new index holding the given records.
+     *
+     * @param records The event records.
+     */
+    protected EventIndex(List<EventRecord> records) {
+        this.records = new ConcurrentHashMap<CmsUUID, EventRecord>(records.size() * 2);
+        for (EventRecord record : records) {
+            this.records.put(record.getStructureId(), record);
+        }
+        this.tree = null;
+    }
+
+    /**
+     * Gets the event index, if it can be queried to serve the given context.
+     * <p>
+     * If no index exists, a new one is built.
+     * <p>
+     * If the given context is not the guest user in the online project, or
+     * if the index could not be built, <code>null</code> is returned.
+     *
+     * @param cmso Initialized CmsObject, representing the current context.
+     * @return The event index, or <code>null</code> if it cannot be used to serve the given context.
+     */
+    public static EventIndex getInstance(CmsObject cmso) {
+        if (!cmso.getRequestContext().getCurrentProject().isOnlineProject()
+                || !cmso.getRequestContext().getCurrentUser().isGuestUser()) {
+            return null;
+        }
+        return getInstance();
+    }
+
+    /**
+     * Gets the event index, building it if necessary.
+     * <p>
+     * If a publish or cache clearing event is handled while the index is 
+     * being built, the new index may be outdated, so it is discarded and
+     * built again. If that keeps happening, no index is used for now.
+     * <p>
+     * This is for internal maintenance only: The index must not be queried 
+     * directly to serve requests, see {@link #getInstance(org.opencms.file.CmsObject)}.
+     *
+     * @return The event index, or <code>null</code> if it could not be built.
+     */
+    static EventIndex getInstance() {
+        EventIndex index = instance;
+        if (index == null) {
+            synchronized (LOCK) {
+                index = instance;
+                if (index == null) {
+                    registerListener();
+                    try {
+                        for (int attempt = 1; attempt <= MAX_BUILD_ATTEMPTS; attempt++) {
+                            long generation = GENERATION.get();
+                            index = build();
+                            if (GENERATION.get() == generation) {
+                                instance = index;
+                                return index;
+                            }
+                            if (LOG.isInfoEnabled()) {
+                                LOG.info("Event index outdated while building it (attempt " + attempt + "). Discarding it.");
+                            }
+                        }
+                        return null;
+                    } catch (Exception e) {
+                        if (LOG.isErrorEnabled()) {
+                            LOG.error("Unable to build the event index.", e);
+                        }
+                        return null;
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Gets the indexed record for the given event resource, if that record
+     * is an accurate representation of the resource in the given context.
+     * <p>
+     * This is the case when the record was read from the same version of the
+     * resource: either the context is the online project, or the resource
+     * is unchanged in the context's offline project.
+     * <p>
+     * Unlike {@link #getInstance(org.opencms.file.CmsObject)}, this method
+     * can be used for any user, as the given resource has already been read
+     * with that user's permissions.
+     *
+     * @param cmso Initialized CmsObject, representing the current context.
+     * @param eventResource The event resource.
+     * @return The indexed record for the given event resource, or <code>null</code> if none is available.
+     */
+    public static EventRecord getRecord(CmsObject cmso, CmsResource eventResource) {
+        if (!cmso.getRequestContext().getCurrentProject().isOnlineProject()
+                && !eventResource.getState().isUnchanged()) {
+            return null;
+        }
+        EventIndex index = getInstance();
+        if (index == null) {
+            return null;
+        }
+        EventRecord record = index.records.get(eventResource.getStructureId());
+        if (record == null
+                || record.getDateLastModified() != eventResource.getDateLastModified()
+                || !record.getRootPath().equals(eventResource.getRootPath())) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * Drops the current index, forcing a rebuild on next use.
+     */
+    public static void clear() {
+        instance = null;
+    }
+
+    /**
+     * Registers the event listener that maintains the index, unless that has
+     * been done already.
+     */
+    private static void registerListener() {
+        if (!listenerRegistered) {
+            OpenCms.addCmsEventListener(new I_CmsEventListener() {
+                    public void cmsEvent(CmsEvent event) {
+                        handleEvent(event);
+                    }
+                },
+                new int[] {
+                    I_CmsEventListener.EVENT_PUBLISH_PROJECT,
+                    I_CmsEventListener.EVENT_CLEAR_CACHES
+                }
+            );
+            listenerRegistered = true;
+        }
+    }
+
+    /**
+     * Handles the given OpenCms event, by updating the affected records, and
+     * then clearing the {@link EventResultCache}.
+     * <p>
+     * The result cache is cleared here, after the index is updated, so that
+     * no request can collect a result from the outdated index, and then 
+     * cache it after the result cache was cleared by its own listener. 
+     * Requests still collecting from the outdated index when the cache is 
+     * cleared here are rejected by {@link EventResultCache#put(java.lang.Object, long, java.util.List, int, java.util.Map)}.
+     *
+     * @param event The OpenCms event.
+     */
+    private static void handleEvent(CmsEvent event) {
+        GENERATION.incrementAndGet(); // Even if there is no index, one may be being built
+        try {
+            if (event.getType() == I_CmsEventListener.EVENT_CLEAR_CACHES) {
+                clear();
+                return;
+            }
+            EventIndex index = instance;
+            if (index == null) {
+                return; // Nothing to maintain
+            }
+            try {
+                CmsObject guestCmso = getGuestCmsObject();
+                Object publishId = event.getData().get(I_CmsEventListener.KEY_PUBLISHID);
+                if (publishId == null) {
+                    clear(); // Unable to determine what was published
+                    return;
+                }
+                List<CmsPublishedResource> publishedResources = guestCmso.readPublishedResources(new CmsUUID(publishId.toString()));
+                // Folders first, then any files not already handled by a folder
+                Set<CmsUUID> handled = new HashSet<CmsUUID>();
+                for (CmsPublishedResource publishedResource : publishedResources) {
+                    if (publishedResource.isFolder()) {
+                        handled.addAll(index.updateFolder(guestCmso, publishedResource.getRootPath()));
+                    }
+                }
+                for (CmsPublishedResource publishedResource : publishedResources) {
+                    if (!publishedResource.isFolder() && !handled.contains(publishedResource.getStructureId())) {
+                        index.update(guestCmso, publishedResource.getStructureId());
+                    }
+                }
+            } catch (Exception e) {
+                if (LOG.isErrorEnabled()) {
+                    LOG.error("Unable to update the event index. Dropping it.", e);
+                }
+                clear();
+            }
+        } finally {
+            EventResultCache.clear();
+        }
+    }
+
+    /**
+     * Gets a new CmsObject for the guest user in the online project, with the
+     * site root set to the root site.
+     *
+     * @return A new CmsObject for the guest user in the online project.
+     * @throws CmsException If anything goes wrong.
+     */
+    private static CmsObject getGuestCmsObject() throws CmsException {
+        CmsObject guestCmso = OpenCms.initCmsObject(OpenCms.getDefaultUsers().getUserGuest());
+        guestCmso.getRequestContext().setSiteRoot("");
+        return guestCmso;
+    }
+
+    /**
+     * Gets the filter used when reading event resources into the index.
+     *
+     * @return The filter used when reading event resources into the index.
+     * @throws CmsException If the event resource type is not available.
+     */
+    private static CmsResourceFilter getEventFilter() throws CmsException {
+        return CmsResourceFilter.IGNORE_EXPIRATION
+                .addRequireType(OpenCms.getResourceManager().getResourceType(EventEntry.RESOURCE_TYPE_NAME_EVENT).getTypeId())
+                .addExcludeFlags(CmsResource.FLAG_TEMPFILE);
+    }
+
+    /**
+     * Builds a new index by reading all event resources in the online project.
+     *
+     * @return The new index.
+     * @throws Exception If anything goes wrong.
+     */
+    private static EventIndex build() throws Exception {
+        long buildStart = System.currentTimeMillis();
+        CmsObject guestCmso = getGuestCmsObject();
+
+        List<CmsResource> eventResources = guestCmso.readResources("/", getEventFilter(), true);
+        Map<CmsUUID, List<CmsProperty>> properties = EventPropertyLoader.load(guestCmso, eventResources);
+        List<EventRecord> records = new ArrayList<EventRecord>(eventResources.size());
+        Iterator<CmsResource> iEventResources = eventResources.iterator();
+        while (iEventResources.hasNext()) {
+            CmsResource eventResource = iEventResources.next();
+            if (!properties.containsKey(eventResource.getStructureId())) {
+                continue; // Reading properties failed (already logged)
+            }
+            try {
+                records.add(new EventRecord(eventResource, properties.get(eventResource.getStructureId())));
+            } catch (Exception e) {
+                if (LOG.isWarnEnabled()) {
+                    LOG.warn("Unable to index event '" + eventResource.getRootPath() + "'.", e);
+                }
+            }
+        }
+        EventIndex index = new EventIndex(records);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Event index built with " + records.size() + " events in "
+                    + (System.currentTimeMillis() - buildStart) + " ms.");
+        }
+        return index;
+    }
+
+    /**
+     * Re-reads the resource with the given structure ID, and updates its
+     * record. If the resource is no longer a readable event, its record is
+     * removed.
+     *
+     * @param guestCmso Initialized CmsObject for the guest user in the online project.
+     * @param structureId The structure ID of the resource to update.
+     */
+    private void update(CmsObject guestCmso, CmsUUID structureId) {
+        EventRecord record = null;
+        try {
+            CmsResource eventResource = guestCmso.readResource(structureId, getEventFilter());
+            record = new EventRecord(guestCmso, eventResource);
+        } catch (Exception e) {
+            // Deleted, not readable, not an event, or invalid => no record
+        }
+        synchronized (this) {
+            if (record != null) {
+                records.put(structureId, record);
+                tree = null;
+            } else if (records.remove(structureId) != null) {
+                tree = null;
+            }
+        }
+    }
+
+    /**
+     * Updates the records for all events inside the given folder.
+     * <p>
+     * All events currently inside the folder are read in one pass, and their
+     * records are replaced (which handles moved folders). Indexed records 
+     * inside the folder that were not read are removed (which handles 
+     * deleted folders).
+     *
+     * @param guestCmso Initialized CmsObject for the guest user in the online project.
+     * @param folderRootPath The root path of the folder.
+     * @return The structure IDs of all events updated or removed.
+     */
+    private Set<CmsUUID> updateFolder(CmsObject guestCmso, String folderRootPath) {
+        List<CmsResource> eventResources = null;
+        Map<CmsUUID, List<CmsProperty>> properties = null;
+        try {
+            eventResources = guestCmso.readResources(folderRootPath, getEventFilter(), true);
+            properties = EventPropertyLoader.load(guestCmso, eventResources);
+        } catch (CmsException e) {
+            // Folder deleted or not readable => no events inside it
+            eventResources = new ArrayList<CmsResource>(0);
+        }
+        Map<CmsUUID, EventRecord> folderRecords = new HashMap<CmsUUID, EventRecord>(eventResources.size() * 2 + 1);
+        for (CmsResource eventResource : eventResources) {
+            if (!properties.containsKey(eventResource.getStructureId())) {
+                continue; // Reading properties failed (already logged)
+            }
+            try {
+                folderRecords.put(eventResource.getStructureId(), new EventRecord(eventResource, properties.get(eventResource.getStructureId())));
+            } catch (Exception e) {
+                if (LOG.isWarnEnabled()) {
+                    LOG.warn("Unable to index event '" + eventResource.getRootPath() + "'.", e);
+                }
+            }
+        }
+        Set<CmsUUID> handled = new HashSet<CmsUUID>();
+        for (CmsResource eventResource : eventResources) {
+            handled.add(eventResource.getStructureId());
+        }
+        synchronized (this) {
+            Iterator<EventRecord> iRecords = records.values().iterator();
+            while (iRecords.hasNext()) {
+                EventRecord record = iRecords.next();
+                if (record.getRootPath().startsWith(folderRootPath) 
+                        && !folderRecords.containsKey(record.getStructureId())) {
+                    handled.add(record.getStructureId());
+                    iRecords.remove();
+                }
+            }
+            for (CmsUUID structureId : handled) {
+                if (!folderRecords.containsKey(structureId)) {
+                    records.remove(structureId); // Not a valid event (anymore)
+                }
+            }
+            records.putAll(folderRecords);
+            tree = null;
+        }
+        return handled;
+    }
+
+    /**
+     * Gets the interval tree, re-creating it from the records if necessary.
+     *
+     * @return The interval tree.
+     */
+    private EventIntervalTree getTree() {
+        EventIntervalTree t = tree;
+        if (t == null) {
+            synchronized (this) {
+                t = tree;
+                if (t == null) {
+                    t = new EventIntervalTree(records.values());
+                    tree = t;
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Event index tree created with " + t.size() + " events, " + t.getFolderCount() 
+                                + " distinct folders and " + t.getCategoriesCount() + " distinct category sets.");
+                    }
+                }
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Gets the records for all events in the given folder (including
+     * sub-folders) that may occupy any part of the given time range, and are
+     * released and not expired at the given time.
+     * <p>
+     * The returned list is a superset of the events that match the range:
+     * callers should still evaluate each event (and its recurrences)
+     * against the range.
+     *
+     * @param folderRootPath The root path of the folder to collect events from.
+     * @param rangeStart The range start.
+     * @param rangeEnd The range end.
+     * @param time The time to evaluate release and expiration against, typically the request time.
+     * @return The records for all matching events, in order of ascending start time, or an empty list if none.
+     */
+    public List<EventRecord> query(String folderRootPath, long rangeStart, long rangeEnd, long time) {
+        return getTree().getMatching(rangeStart, rangeEnd, time, folderRootPath, null, null, ResourceCategoriesFilter.MODE_EXCLUSIVE);
+    }
+
+    /**
+     * Gets the records for all events in the given folder (including
+     * sub-folders), except those in excluded folders, that may occupy any 
+     * part of the given time range, are released and not expired at the 
+     * given time, and match the given categories.
+     * <p>
+     * All filtering is done inside the interval tree, so records that do not
+     * match are never touched. Like {@link #query(java.lang.String, long, long, long)},
+     * the returned list is a superset of the events that match the range.
+     *
+     * @param folderRootPath The root path of the folder to collect events from.
+     * @param excludedFolders The root path prefixes of excluded folders, or <code>null</code> if none.
+     * @param categories The root paths of the categories to filter by, or <code>null</code> if none.
+     * @param categoryMode The category filter mode, one of {@link ResourceCategoriesFilter#MODE_EXCLUSIVE} or {@link ResourceCategoriesFilter#MODE_INCLUSIVE}.
+     * @param rangeStart The range start.
+     * @param rangeEnd The range end.
+     * @param time The time to evaluate release and expiration against, typically the request time.
+     * @return The records for all matching events, in order of ascending start time, or an empty list if none.
+     * @see EventIntervalTree#getMatching(long, long, long, java.lang.String, no.npolar.common.eventcalendar.PathPrefixSet, java.util.List, int)
+     */
+    public List<EventRecord> query(String folderRootPath, PathPrefixSet excludedFolders, 
+                                    List<String> categories, int categoryMode, 
+                                    long rangeStart, long rangeEnd, long time) {
+        return getTree().getMatching(rangeStart, rangeEnd, time, folderRootPath, excludedFolders, categories, categoryMode);
+    }
+
+    /**
+     * Gets all records in this index, in no particular order.
+     *
+     * @return A snapshot of all records in this index.
+     */
+    public List<EventRecord> getRecords() {
+        return new ArrayList<EventRecord>(records.values());
+    }
+
+    /**
+     * Gets the number of events in this index.
+     *
+     * @return The number of events in this index.
+     */
+    public int size() {
+        return records.size();
+    }
+}
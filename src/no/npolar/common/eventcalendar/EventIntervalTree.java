@@ -0,0 +1,357 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.opencms.file.CmsResource;
+
+/**
+ * An immutable interval tree of event records, used to answer time range
+ * queries in O(log n + k) time.
+ * <p>
+ * The tree is laid out implicitly over an array of records sorted by start
+ * time: the root of any sub-tree spanning the array indices <i>lo</i> to
+ * <i>hi</i> is the record in the middle. Each node is augmented with the
+ * maximum end time found in its sub-tree, so that whole sub-trees ending
+ * before the queried range can be skipped.
+ * <p>
+ * Everything needed to filter records is held in columns of primitives,
+ * index-aligned with the records: start and end times, release and
+ * expiration dates, and the ids of each record's folder and categories
+ * string. Folders and categories strings are interned, so each
+ * distinct folder or categories string is evaluated only once per query,
+ * see {@link #getMatching(long, long, long, java.lang.String, no.npolar.common.eventcalendar.PathPrefixSet, java.util.List, int)}.
+ * The records themselves are touched only for matches.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class EventIntervalTree {
+
+    /** Folder state: All records in the folder are accepted. */
+    private static final byte FOLDER_ACCEPT = 0;
+    /** Folder state: All records in the folder are rejected. */
+    private static final byte FOLDER_REJECT = 1;
+    /** Folder state: Each record in the folder must be evaluated by its root path. */
+    private static final byte FOLDER_CHECK = 2;
+
+    /** Compares records by their start time. */
+    private static final Comparator<EventRecord> COMPARATOR_INDEX_START =
+            new Comparator<EventRecord>() {
+                public int compare(EventRecord r1, EventRecord r2) {
+                    if (r1.getIndexStart() < r2.getIndexStart())
+                        return -1;
+                    else if (r1.getIndexStart() > r2.getIndexStart())
+                        return 1;
+                    return 0;
+                }
+            };
+
+    /** The records, sorted by start time. */
+    private final EventRecord[] records;
+    /** The start times, index-aligned with the records. */
+    private final long[] starts;
+    /** The end times, index-aligned with the records. */
+    private final long[] ends;
+    /** The maximum end time of the sub-tree rooted at each index. */
+    private final long[] maxEnds;
+    /** The release dates, index-aligned with the records. */
+    private final long[] released;
+    /** The expiration dates, index-aligned with the records. */
+    private final long[] expired;
+    /** The folder ids, index-aligned with the records. */
+    private final int[] folderIds;
+    /** The categories string ids, index-aligned with the records. */
+    private final int[] categoriesIds;
+    /** The distinct folders (root paths), by id. */
+    private final String[] folders;
+    /** The distinct categories, as bit sets of category ids, by id. */
+    private final BitSet[] categorySets;
+
+    /**
+     * Creates a new tree, holding the given records.
+     *
+     * @param records The records to hold.
+     */
+    public EventIntervalTree(Collection<EventRecord> records) {
+        List<EventRecord> sorted = new ArrayList<EventRecord>(records);
+        Collections.sort(sorted, COMPARATOR_INDEX_START);
+
+        int n = sorted.size();
+        this.records = sorted.toArray(new EventRecord[n]);
+        this.starts = new long[n];
+        this.ends = new long[n];
+        this.maxEnds = new long[n];
+        this.released = new long[n];
+        this.expired = new long[n];
+        this.folderIds = new int[n];
+        this.categoriesIds = new int[n];
+        Map<String, Integer> folderDictionary = new HashMap<String, Integer>();
+        Map<String, Integer> categoriesDictionary = new HashMap<String, Integer>();
+        for (int i = 0; i < n; i++) {
+            EventRecord record = this.records[i];
+            starts[i] = record.getIndexStart();
+            ends[i] = record.getIndexEnd();
+            released[i] = record.getDateReleased();
+            expired[i] = record.getDateExpired();
+            folderIds[i] = intern(CmsResource.getFolderPath(record.getRootPath()), folderDictionary);
+            categoriesIds[i] = intern(record.getCategoriesString(), categoriesDictionary);
+        }
+        this.folders = toArray(folderDictionary);
+        String[] categoriesStrings = toArray(categoriesDictionary);
+        this.categorySets = new BitSet[categoriesStrings.length];
+        for (int i = 0; i < categoriesStrings.length; i++) {
+            categorySets[i] = CategoryDictionary.getCategories(categoriesStrings[i]);
+        }
+        build(0, n - 1);
+    }
+
+    /**
+     * Gets the id of the given value, adding it to the given dictionary if
+     * necessary.
+     *
+     * @param value The value.
+     * @param dictionary The dictionary, mapping values to ids.
+     * @return The id of the given value.
+     */
+    private static int intern(String value, Map<String, Integer> dictionary) {
+        Integer id = dictionary.get(value);
+        if (id == null) {
+            id = Integer.valueOf(dictionary.size());
+            dictionary.put(value, id);
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Converts the given dictionary to an array of values, indexed by id.
+     *
+     * @param dictionary The dictionary, mapping values to ids.
+     * @return The values, indexed by id.
+     */
+    private static String[] toArray(Map<String, Integer> dictionary) {
+        String[] values = new String[dictionary.size()];
+        for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+            values[entry.getValue().intValue()] = entry.getKey();
+        }
+        return values;
+    }
+
+    /**
+     * Sets the maximum end times for the sub-tree spanning the given indices.
+     *
+     * @param lo The lowest index in the sub-tree.
+     * @param hi The highest index in the sub-tree.
+     * @return The maximum end time in the sub-tree.
+     */
+    private long build(int lo, int hi) {
+        if (lo > hi) {
+            return Long.MIN_VALUE;
+        }
+        int mid = (lo + hi) >>> 1;
+        long max = Math.max(ends[mid], Math.max(build(lo, mid - 1), build(mid + 1, hi)));
+        maxEnds[mid] = max;
+        return max;
+    }
+
+    /**
+     * Gets all records with a time span that overlaps the given range, in
+     * order of ascending start time.
+     * <p>
+     * Range start and end are inclusive.
+     *
+     * @param rangeStart The range start.
+     * @param rangeEnd The range end.
+     * @return All records with a time span that overlaps the given range, or an empty list if none.
+     */
+    public List<EventRecord> getOverlapping(long rangeStart, long rangeEnd) {
+        return getMatching(rangeStart, rangeEnd, Long.MIN_VALUE, null, null, null, ResourceCategoriesFilter.MODE_EXCLUSIVE);
+    }
+
+    /**
+     * Gets all records with a time span that overlaps the given range, and
+     * that match all the given filters, in order of ascending start time.
+     * <p>
+     * Range start and end are inclusive. Any filter set to <code>null</code>
+     * is ignored.
+     * <p>
+     * Each distinct folder and categories string is evaluated against the
+     * filters once, before the tree is traversed. The traversal itself
+     * evaluates only primitive columns.
+     *
+     * @param rangeStart The range start.
+     * @param rangeEnd The range end.
+     * @param time The time to evaluate release and expiration against, or <code>Long.MIN_VALUE</code> to ignore release and expiration.
+     * @param folderRootPath The root path of the folder records must be in (including sub-folders), or <code>null</code>.
+     * @param excludedFolders The root path prefixes of excluded folders, or <code>null</code>.
+     * @param categories The root paths of the categories to filter by, or <code>null</code>.
+     * @param categoryMode The category filter mode, one of {@link ResourceCategoriesFilter#MODE_EXCLUSIVE} or {@link ResourceCategoriesFilter#MODE_INCLUSIVE}.
+     * @return All matching records, or an empty list if none.
+     */
+    public List<EventRecord> getMatching(long rangeStart, long rangeEnd, long time,
+                                            String folderRootPath, PathPrefixSet excludedFolders,
+                                            List<String> categories, int categoryMode) {
+        Query query = new Query(rangeStart, rangeEnd, time, folderRootPath, excludedFolders);
+        if (folderRootPath != null || excludedFolders != null) {
+            query.folderStates = new byte[folders.length];
+            for (int i = 0; i < folders.length; i++) {
+                query.folderStates[i] = getFolderState(folders[i], folderRootPath, excludedFolders);
+            }
+        }
+        // All categories strings were parsed on construction, so the filter is complete
+        CategoryDictionary.Filter filter = CategoryDictionary.getFilter(categories);
+        if (filter != null) {
+            query.categoriesMatches = new boolean[categorySets.length];
+            for (int i = 0; i < categorySets.length; i++) {
+                query.categoriesMatches[i] = CategoryDictionary.matches(categorySets[i], filter, categoryMode);
+            }
+        }
+        collectMatching(0, records.length - 1, query);
+        return query.matches;
+    }
+
+    /**
+     * Evaluates the given folder against the given folder filters.
+     *
+     * @param folder The root path of the folder to evaluate.
+     * @param folderRootPath The root path of the folder records must be in, or <code>null</code>.
+     * @param excludedFolders The root path prefixes of excluded folders, or <code>null</code>.
+     * @return The state of the folder, one of FOLDER_ACCEPT, FOLDER_REJECT or FOLDER_CHECK.
+     */
+    private static byte getFolderState(String folder, String folderRootPath, PathPrefixSet excludedFolders) {
+        byte state = FOLDER_ACCEPT;
+        if (folderRootPath != null && !folder.startsWith(folderRootPath)) {
+            if (!folderRootPath.startsWith(folder)) {
+                return FOLDER_REJECT;
+            }
+            state = FOLDER_CHECK; // Some records in the folder may match (by their file name)
+        }
+        if (excludedFolders != null) {
+            if (excludedFolders.matches(folder)) {
+                return FOLDER_REJECT;
+            }
+            if (excludedFolders.hasPrefixBelow(folder)) {
+                state = FOLDER_CHECK; // Some records in the folder may be excluded (by their file name)
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Adds all records in the sub-tree spanning the given indices that match
+     * the given query to the query's matches.
+     *
+     * @param lo The lowest index in the sub-tree.
+     * @param hi The highest index in the sub-tree.
+     * @param query The query.
+     */
+    private void collectMatching(int lo, int hi, Query query) {
+        if (lo > hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (maxEnds[mid] < query.rangeStart) {
+            return; // Everything in this sub-tree ends before the range
+        }
+        collectMatching(lo, mid - 1, query);
+        if (starts[mid] > query.rangeEnd) {
+            return; // This and everything to the right starts after the range
+        }
+        if (ends[mid] >= query.rangeStart
+                && (query.time == Long.MIN_VALUE || (query.time >= released[mid] && query.time < expired[mid]))
+                && (query.categoriesMatches == null || query.categoriesMatches[categoriesIds[mid]])
+                && (query.folderStates == null || isFolderMatch(mid, query))) {
+            query.matches.add(records[mid]);
+        }
+        collectMatching(mid + 1, hi, query);
+    }
+
+    /**
+     * Determines if the record at the given index matches the given query's
+     * folder filters.
+     *
+     * @param i The record index.
+     * @param query The query.
+     * @return True if the record at the given index matches the given query's folder filters, false if not.
+     */
+    private boolean isFolderMatch(int i, Query query) {
+        byte state = query.folderStates[folderIds[i]];
+        if (state != FOLDER_CHECK) {
+            return state == FOLDER_ACCEPT;
+        }
+        String rootPath = records[i].getRootPath();
+        return (query.folderRootPath == null || rootPath.startsWith(query.folderRootPath))
+                && (query.excludedFolders == null || !query.excludedFolders.matches(rootPath));
+    }
+
+    /**
+     * Gets the number of records in this tree.
+     *
+     * @return The number of records in this tree.
+     */
+    public int size() {
+        return records.length;
+    }
+
+    /**
+     * Gets the number of distinct folders in this tree.
+     *
+     * @return The number of distinct folders in this tree.
+     */
+    public int getFolderCount() {
+        return folders.length;
+    }
+
+    /**
+     * Gets the number of distinct categories strings in this tree.
+     *
+     * @return The number of distinct categories strings in this tree.
+     */
+    public int getCategoriesCount() {
+        return categorySets.length;
+    }
+
+    /**
+     * The state of a single query: its parameters, the pre-evaluated
+     * folder and categories filters, and the matches.
+     */
+    private static class Query {
+        /** The range start. */
+        private final long rangeStart;
+        /** The range end. */
+        private final long rangeEnd;
+        /** The time to evaluate release and expiration against, or Long.MIN_VALUE. */
+        private final long time;
+        /** The root path of the folder records must be in, or null. */
+        private final String folderRootPath;
+        /** The root path prefixes of excluded folders, or null. */
+        private final PathPrefixSet excludedFolders;
+        /** The state of each folder, by id, or null if no folder filters. */
+        private byte[] folderStates = null;
+        /** Whether or not each categories string matches, by id, or null if no category filter. */
+        private boolean[] categoriesMatches = null;
+        /** The matches. */
+        private final List<EventRecord> matches = new ArrayList<EventRecord>();
+
+        /**
+         * Creates a new query.
+         *
+         * @param rangeStart The range start.
+         * @param rangeEnd The range end.
+         * @param time The time to evaluate release and expiration against, or Long.MIN_VALUE.
+         * @param folderRootPath The root path of the folder records must be in, or null.
+         * @param excludedFolders The root path prefixes of excluded folders, or null.
+         */
+        private Query(long rangeStart, long rangeEnd, long time, String folderRootPath, PathPrefixSet excludedFolders) {
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+            this.time = time;
+            this.folderRootPath = folderRootPath;
+            this.excludedFolders = excludedFolders;
+        }
+    }
+}
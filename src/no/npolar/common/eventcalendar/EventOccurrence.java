@@ -0,0 +1,94 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.BitSet;
+import java.util.Locale;
+import org.opencms.util.CmsUUID;
+
+/**
+ * A single occurrence of a recurring event.
+ * <p>
+ * An occurrence is a lightweight event: It holds only its own start and end
+ * times, and references its parent (the recurring event) for everything else
+ * - title, description, locale, IDs, recurrence rule and categories. This
+ * avoids copying these details to each of the (possibly many thousand)
+ * occurrences produced by {@link EventEntry#getRecurrences(long, long, int)}.
+ * <p>
+ * Occurrences are events, and can be used for rendering and sorting just like
+ * any other {@link EventEntry}. Per-instance settings, like the date format
+ * and HTML, are not shared with the parent.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class EventOccurrence extends EventEntry {
+
+    /** The recurring event this is an occurrence of. */
+    private final EventEntry parent;
+
+    /**
+     * Creates a new occurrence of the given recurring event.
+     *
+     * @param parent the recurring event. If this is itself an occurrence, its parent is used.
+     * @param start the occurrence's start time.
+     * @param stop the occurrence's end time.
+     */
+    public EventOccurrence(EventEntry parent, long start, long stop) {
+        super(start, stop, parent.getTimeDisplayMode(), true);
+        this.parent = parent instanceof EventOccurrence ? ((EventOccurrence)parent).getParent() : parent;
+        setTimeZone(parent.getTimeZone());
+    }
+
+    /**
+     * Gets the recurring event this is an occurrence of.
+     *
+     * @return The recurring event this is an occurrence of.
+     */
+    public EventEntry getParent() { return this.parent; }
+
+    /**
+     * @see EventEntry#getTitle()
+     */
+    @Override
+    public String getTitle() { return parent.getTitle(); }
+
+    /**
+     * @see EventEntry#getDescription()
+     */
+    @Override
+    public String getDescription() { return parent.getDescription(); }
+
+    /**
+     * @see EventEntry#getStructureId()
+     */
+    @Override
+    public CmsUUID getStructureId() { return parent.getStructureId(); }
+
+    /**
+     * @see EventEntry#getResourceId()
+     */
+    @Override
+    public CmsUUID getResourceId() { return parent.getResourceId(); }
+
+    /**
+     * @see EventEntry#getRecurrenceRule()
+     */
+    @Override
+    public String getRecurrenceRule() { return parent.getRecurrenceRule(); }
+
+    /**
+     * @see EventEntry#getCategoriesString()
+     */
+    @Override
+    public String getCategoriesString() { return parent.getCategoriesString(); }
+
+    /**
+     * @see EventEntry#getCategorySet()
+     */
+    @Override
+    public BitSet getCategorySet() { return parent.getCategorySet(); }
+
+    /**
+     * @see EventEntry#getLocale()
+     */
+    @Override
+    public Locale getLocale() { return parent.getLocale(); }
+}
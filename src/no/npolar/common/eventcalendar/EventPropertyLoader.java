@@ -0,0 +1,71 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsProperty;
+import org.opencms.file.CmsResource;
+import org.opencms.main.CmsException;
+import org.opencms.main.CmsLog;
+import org.opencms.util.CmsUUID;
+
+/**
+ * Loads the properties needed to create events, for a whole list of event
+ * resources in one pass.
+ * <p>
+ * All properties of a resource are read in a single call, instead of
+ * reading each of the event properties (title, start, end, description,
+ * display, recurrence rule and categories) separately. The loaded
+ * properties can then be passed to
+ * {@link EventEntry#EventEntry(org.opencms.jsp.CmsJspActionElement, org.opencms.file.CmsResource, java.util.List)}.
+ * <p>
+ * (OpenCms offers no way of reading the property values of multiple
+ * resources in a single call, so one call per resource is the minimum.)
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class EventPropertyLoader {
+
+    /** The log object for this class. */
+    private static final Log LOG = CmsLog.getLog(EventPropertyLoader.class);
+
+    /**
+     * Reads the properties of the given event resource.
+     * <p>
+     * Only properties set directly on the resource are read (no inheritance).
+     *
+     * @param cmso Initialized CmsObject.
+     * @param eventResource The event resource.
+     * @return The properties of the given event resource.
+     * @throws CmsException If reading the properties fails.
+     */
+    public static List<CmsProperty> read(CmsObject cmso, CmsResource eventResource) throws CmsException {
+        return cmso.readPropertyObjects(eventResource, false);
+    }
+
+    /**
+     * Reads the properties of all the given event resources.
+     * <p>
+     * Resources for which reading the properties failed are not present in
+     * the returned map.
+     *
+     * @param cmso Initialized CmsObject.
+     * @param eventResources The event resources.
+     * @return The properties of the given event resources, keyed by structure ID.
+     */
+    public static Map<CmsUUID, List<CmsProperty>> load(CmsObject cmso, List<CmsResource> eventResources) {
+        Map<CmsUUID, List<CmsProperty>> properties = new HashMap<CmsUUID, List<CmsProperty>>(eventResources.size() * 2);
+        for (CmsResource eventResource : eventResources) {
+            try {
+                properties.put(eventResource.getStructureId(), read(cmso, eventResource));
+            } catch (CmsException e) {
+                if (LOG.isErrorEnabled()) {
+                    LOG.error("Unable to read properties of event '" + eventResource.getRootPath() + "'.", e);
+                }
+            }
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,692 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.opencms.main.CmsIllegalArgumentException;
+import org.opencms.main.CmsLog;
+import org.opencms.util.CmsStringUtil;
+
+/**
+ * An immutable, pre-parsed set of event collector parameters.
+ * <p>
+ * Queries are created using a {@link Builder}, and can be passed directly to
+ * the collectors, e.g. {@link TimeRangeCategoryEventCollector#getEvents(org.opencms.jsp.CmsJspActionElement, no.npolar.common.eventcalendar.EventQuery)}.
+ * This avoids serializing the parameters to a string, only to have the
+ * collector parse them back again.
+ * <p>
+ * Categories and excluded folders are held in sorted order, so that queries
+ * that differ only in the order of these are equal. This makes queries
+ * suitable as cache keys.
+ * <p>
+ * The pipe-delimited string form, as used by <code>&lt;cms:contentload&gt;</code>,
+ * is supported through {@link #valueOf(java.lang.String)} and
+ * {@link #toParameterString()}.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class EventQuery {
+
+    /** The log object for this class. */
+    private static final Log LOG = CmsLog.getLog(EventQuery.class);
+
+    /** The folder to collect from. */
+    private final String folder;
+    /** The name of the resource type to collect. */
+    private final String resourceType;
+    /** The start of the time frame. */
+    private final long timeStart;
+    /** The end of the time frame. */
+    private final long timeEnd;
+    /** The name of the start time property. */
+    private final String propertyTimeStart;
+    /** The name of the end time property. */
+    private final String propertyTimeEnd;
+    /** The name of the categories property. */
+    private final String propertyCategories;
+    /** The (root paths of the) categories to match, sorted. */
+    private final List<String> categories;
+    /** The folders to exclude, sorted. */
+    private final List<String> excludedFolders;
+    /** The maximum number of results. */
+    private final int resultLimit;
+    /** Sort descending? */
+    private final boolean sortDescending;
+    /** Exclude expired events? */
+    private final boolean excludeExpired;
+    /** Include recurrences? */
+    private final boolean includeRecurrences;
+    /** Include events that only partially overlap the time frame? */
+    private final boolean overlapLenient;
+    /** Use inclusive category matching? */
+    private final boolean categoryInclusive;
+    /** Allow parallel collection? */
+    private final boolean parallel;
+
+    /**
+     * Builds queries.
+     * <p>
+     * Defaults are the same as when the corresponding parameter is missing
+     * from a collector parameter string.
+     */
+    public static class Builder {
+        /** The folder to collect from. */
+        private String folder = null;
+        /** The name of the resource type to collect. */
+        private String resourceType = null;
+        /** The start of the time frame. */
+        private long timeStart = Long.MIN_VALUE;
+        /** The end of the time frame. */
+        private long timeEnd = Long.MAX_VALUE;
+        /** The name of the start time property. */
+        private String propertyTimeStart = null;
+        /** The name of the end time property. */
+        private String propertyTimeEnd = null;
+        /** The name of the categories property. */
+        private String propertyCategories = null;
+        /** The (root paths of the) categories to match. */
+        private List<String> categories = new ArrayList<String>();
+        /** The folders to exclude. */
+        private List<String> excludedFolders = new ArrayList<String>();
+        /** The maximum number of results. */
+        private int resultLimit = 0;
+        /** Sort descending? */
+        private boolean sortDescending = false;
+        /** Exclude expired events? */
+        private boolean excludeExpired = false;
+        /** Include recurrences? */
+        private boolean includeRecurrences = true;
+        /** Include events that only partially overlap the time frame? */
+        private boolean overlapLenient = true;
+        /** Use inclusive category matching? */
+        private boolean categoryInclusive = true;
+        /** Allow parallel collection? */
+        private boolean parallel = false;
+
+        /**
+         * Creates a new builder with default values.
+         */
+        public Builder() {}
+
+        /**
+         * Creates a new builder, initialized with the values of the given query.
+         *
+         * @param query The query to copy values from.
+         */
+        public Builder(EventQuery query) {
+            this.folder = query.folder;
+            this.resourceType = query.resourceType;
+            this.timeStart = query.timeStart;
+            this.timeEnd = query.timeEnd;
+            this.propertyTimeStart = query.propertyTimeStart;
+            this.propertyTimeEnd = query.propertyTimeEnd;
+            this.propertyCategories = query.propertyCategories;
+            this.categories.addAll(query.categories);
+            this.excludedFolders.addAll(query.excludedFolders);
+            this.resultLimit = query.resultLimit;
+            this.sortDescending = query.sortDescending;
+            this.excludeExpired = query.excludeExpired;
+            this.includeRecurrences = query.includeRecurrences;
+            this.overlapLenient = query.overlapLenient;
+            this.categoryInclusive = query.categoryInclusive;
+            this.parallel = query.parallel;
+        }
+
+        /**
+         * Sets the folder to collect from.
+         *
+         * @param folder The folder to collect from.
+         * @return This builder.
+         */
+        public Builder setFolder(String folder) { this.folder = folder; return this; }
+
+        /**
+         * Sets the name of the resource type to collect.
+         *
+         * @param resourceType The name of the resource type to collect.
+         * @return This builder.
+         */
+        public Builder setResourceType(String resourceType) { this.resourceType = resourceType; return this; }
+
+        /**
+         * Sets the time frame.
+         *
+         * @param timeStart The start of the time frame.
+         * @param timeEnd The end of the time frame.
+         * @return This builder.
+         */
+        public Builder setTimeFrame(long timeStart, long timeEnd) { this.timeStart = timeStart; this.timeEnd = timeEnd; return this; }
+
+        /**
+         * Sets the names of the start and end time properties.
+         *
+         * @param propertyTimeStart The name of the start time property.
+         * @param propertyTimeEnd The name of the end time property.
+         * @return This builder.
+         */
+        public Builder setTimeProperties(String propertyTimeStart, String propertyTimeEnd) {
+            this.propertyTimeStart = propertyTimeStart;
+            this.propertyTimeEnd = propertyTimeEnd;
+            return this;
+        }
+
+        /**
+         * Sets the name of the categories property.
+         *
+         * @param propertyCategories The name of the categories property.
+         * @return This builder.
+         */
+        public Builder setCategoriesProperty(String propertyCategories) { this.propertyCategories = propertyCategories; return this; }
+
+        /**
+         * Adds a category to match.
+         *
+         * @param category The root path of the category to match.
+         * @return This builder.
+         */
+        public Builder addCategory(String category) { this.categories.add(category); return this; }
+
+        /**
+         * Sets the categories to match, replacing any previously added.
+         *
+         * @param categories The root paths of the categories to match.
+         * @return This builder.
+         */
+        public Builder setCategories(List<String> categories) {
+            this.categories = new ArrayList<String>(categories);
+            return this;
+        }
+
+        /**
+         * Adds a folder to exclude.
+         *
+         * @param folder The folder to exclude.
+         * @return This builder.
+         */
+        public Builder addExcludedFolder(String folder) { this.excludedFolders.add(folder); return this; }
+
+        /**
+         * Sets the folders to exclude, replacing any previously added.
+         *
+         * @param excludedFolders The folders to exclude.
+         * @return This builder.
+         */
+        public Builder setExcludedFolders(List<String> excludedFolders) {
+            this.excludedFolders = new ArrayList<String>(excludedFolders);
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of results.
+         *
+         * @param resultLimit The maximum number of results. Pass -1 for no limit.
+         * @return This builder.
+         */
+        public Builder setResultLimit(int resultLimit) {
+            this.resultLimit = resultLimit == -1 ? Integer.MAX_VALUE : resultLimit;
+            return this;
+        }
+
+        /**
+         * Sets the sort order.
+         *
+         * @param sortDescending Sort descending?
+         * @return This builder.
+         */
+        public Builder setSortDescending(boolean sortDescending) { this.sortDescending = sortDescending; return this; }
+
+        /**
+         * Sets whether or not to exclude expired events.
+         *
+         * @param excludeExpired Exclude expired events?
+         * @return This builder.
+         */
+        public Builder setExcludeExpired(boolean excludeExpired) { this.excludeExpired = excludeExpired; return this; }
+
+        /**
+         * Sets whether or not to include recurrences.
+         *
+         * @param includeRecurrences Include recurrences?
+         * @return This builder.
+         */
+        public Builder setIncludeRecurrences(boolean includeRecurrences) { this.includeRecurrences = includeRecurrences; return this; }
+
+        /**
+         * Sets whether or not to include events that only partially overlap
+         * the time frame.
+         *
+         * @param overlapLenient Include events that only partially overlap the time frame?
+         * @return This builder.
+         */
+        public Builder setOverlapLenient(boolean overlapLenient) { this.overlapLenient = overlapLenient; return this; }
+
+        /**
+         * Sets the category matching mode.
+         *
+         * @param categoryInclusive Use inclusive (true) or exclusive (false) category matching?
+         * @return This builder.
+         */
+        public Builder setCategoryInclusive(boolean categoryInclusive) { this.categoryInclusive = categoryInclusive; return this; }
+
+        /**
+         * Sets whether or not to allow parallel collection.
+         *
+         * @param parallel Allow parallel collection?
+         * @return This builder.
+         */
+        public Builder setParallel(boolean parallel) { this.parallel = parallel; return this; }
+
+        /**
+         * Creates a new query, using the current values of this builder.
+         *
+         * @return A new query.
+         */
+        public EventQuery build() {
+            return new EventQuery(this);
+        }
+    }
+
+    /**
+     * Creates a new query, using the values of the given builder.
+     *
+     * @param builder The builder.
+     */
+    private EventQuery(Builder builder) {
+        this.folder = builder.folder;
+        this.resourceType = builder.resourceType;
+        this.timeStart = builder.timeStart;
+        this.timeEnd = builder.timeEnd;
+        this.propertyTimeStart = builder.propertyTimeStart;
+        this.propertyTimeEnd = builder.propertyTimeEnd;
+        this.propertyCategories = builder.propertyCategories;
+        this.categories = sorted(builder.categories);
+        this.excludedFolders = sorted(builder.excludedFolders);
+        this.resultLimit = builder.resultLimit;
+        this.sortDescending = builder.sortDescending;
+        this.excludeExpired = builder.excludeExpired;
+        this.includeRecurrences = builder.includeRecurrences;
+        this.overlapLenient = builder.overlapLenient;
+        this.categoryInclusive = builder.categoryInclusive;
+        this.parallel = builder.parallel;
+    }
+
+    /**
+     * Gets an unmodifiable, sorted copy of the given list.
+     *
+     * @param list The list to copy.
+     * @return An unmodifiable, sorted copy of the given list.
+     */
+    private static List<String> sorted(List<String> list) {
+        if (list.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> copy = new ArrayList<String>(list);
+        Collections.sort(copy);
+        return Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * Creates a new query from the given collector parameter string.
+     * <p>
+     * This is the compatibility adapter for the string form, see
+     * {@link EventsCollector} for a description of the parameters.
+     *
+     * @param param The collector parameter string.
+     * @return A new query, holding the values of the given parameter string.
+     * @throws CmsIllegalArgumentException If the parameter string contains an invalid key/value pair.
+     */
+    public static EventQuery valueOf(String param) {
+        Builder builder = new Builder();
+        String timeStart = null;
+        String timeEnd = null;
+        String propertyTimeStart = null;
+        String propertyTimeEnd = null;
+
+        List<String> keyValuePairs = CmsStringUtil.splitAsList(param, '|');
+        for (String keyValuePairStr : keyValuePairs) {
+            String[] keyValuePair = CmsStringUtil.splitAsArray(keyValuePairStr, '=');
+            if (keyValuePair.length != 2) {
+                throw new CmsIllegalArgumentException(org.opencms.file.collectors.Messages.get().container(
+                    org.opencms.file.collectors.Messages.ERR_COLLECTOR_PARAM_KEY_VALUE_SYNTAX_1,
+                    new Object[] {keyValuePairStr}));
+            }
+            String key = String.valueOf(keyValuePair[0]).trim();
+            String value = String.valueOf(keyValuePair[1]).trim();
+
+            if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_RESOURCE.equals(key)) {
+                builder.setFolder(value);
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_RESOURCE_TYPE.equals(key)) {
+                builder.setResourceType(value);
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_RESULT_LIMIT.equals(key)) {
+                builder.resultLimit = Integer.parseInt(value);
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_SORT_DESCENDING.equals(key)) {
+                builder.setSortDescending(Boolean.valueOf(value).booleanValue());
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_TIMEFRAME_START.equals(key)) {
+                timeStart = value;
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_TIMEFRAME_END.equals(key)) {
+                timeEnd = value;
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_PROPERTY_TIME_START.equals(key)) {
+                propertyTimeStart = value;
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_PROPERTY_TIME_END.equals(key)) {
+                propertyTimeEnd = value;
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_CATEGORIES.equals(key)) {
+                builder.setCategories(CmsStringUtil.splitAsList(value, ','));
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_EXCLUDE_FOLDERS.equals(key)) {
+                builder.setExcludedFolders(CmsStringUtil.splitAsList(value, ','));
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_PROPERTY_CATEGORIES.equals(key)) {
+                builder.setCategoriesProperty(value);
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_EXCLUDE_EXPIRED.equals(key)) {
+                builder.setExcludeExpired(Boolean.valueOf(value).booleanValue());
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_INCLUDE_RECURRENCES.equals(key)) {
+                builder.setIncludeRecurrences(Boolean.valueOf(value).booleanValue());
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_OVERLAP_LENIENT.equals(key)) {
+                builder.setOverlapLenient(Boolean.valueOf(value).booleanValue());
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_CATEGORY_INCLUSIVE.equals(key)) {
+                builder.setCategoryInclusive(Boolean.valueOf(value).booleanValue());
+            } else if (CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_PARALLEL.equals(key)) {
+                builder.setParallel(Boolean.valueOf(value).booleanValue());
+            } else {
+                // now, one could accept additional filter properties here...
+            }
+        }
+
+        builder.setTimeProperties(propertyTimeStart, propertyTimeEnd);
+        builder.setTimeFrame(timeStart == null ? Long.MIN_VALUE : parseTime(timeStart, builder.folder),
+                            timeEnd == null ? Long.MAX_VALUE : parseTime(timeEnd, builder.folder));
+        return builder.build();
+    }
+
+    /**
+     * Parses the given time frame parameter value.
+     * <p>
+     * Numeric values are parsed directly, other values are parsed using
+     * {@link EventCalendarUtils#parseTimestamp(java.lang.String)}. Values
+     * that cannot be parsed yield 0.
+     *
+     * @param value The time frame parameter value.
+     * @param folder The folder to collect from, used for logging only.
+     * @return The parsed time, or 0 if the value could not be parsed.
+     */
+    private static long parseTime(String value, String folder) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            try {
+                return EventCalendarUtils.parseTimestamp(value);
+            } catch (Exception e) {
+                if (LOG.isErrorEnabled()) {
+                    LOG.error("Error trying to set '" + value + "' as time frame bound (collecting from " + folder + ").", e);
+                }
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Gets the collector parameter string for this query.
+     * <p>
+     * This is the compatibility adapter for the string form, e.g. for use
+     * with <code>&lt;cms:contentload&gt;</code>. Passing the returned string
+     * to {@link #valueOf(java.lang.String)} yields a query equal to this one.
+     *
+     * @return The collector parameter string for this query.
+     */
+    public String toParameterString() {
+        StringBuilder s = new StringBuilder(256);
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_RESOURCE, folder);
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_RESOURCE_TYPE, resourceType);
+        if (timeStart != Long.MIN_VALUE) {
+            append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_TIMEFRAME_START, String.valueOf(timeStart));
+        }
+        if (timeEnd != Long.MAX_VALUE) {
+            append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_TIMEFRAME_END, String.valueOf(timeEnd));
+        }
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_PROPERTY_TIME_START, propertyTimeStart);
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_PROPERTY_TIME_END, propertyTimeEnd);
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_EXCLUDE_EXPIRED, String.valueOf(excludeExpired));
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_OVERLAP_LENIENT, String.valueOf(overlapLenient));
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_CATEGORY_INCLUSIVE, String.valueOf(categoryInclusive));
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_INCLUDE_RECURRENCES, String.valueOf(includeRecurrences));
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_SORT_DESCENDING, String.valueOf(sortDescending));
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_PARALLEL, String.valueOf(parallel));
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_RESULT_LIMIT, String.valueOf(resultLimit));
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_PROPERTY_CATEGORIES, propertyCategories);
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_CATEGORIES, join(categories));
+        append(s, CmsTimeRangeCategoryCollector.CollectorDataPropertyBased.PARAM_KEY_EXCLUDE_FOLDERS, join(excludedFolders));
+        return s.toString();
+    }
+
+    /**
+     * Appends the given key/value pair to the given parameter string, unless
+     * the value is <code>null</code> or empty.
+     *
+     * @param s The parameter string.
+     * @param key The key.
+     * @param value The value.
+     */
+    private static void append(StringBuilder s, String key, String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        if (s.length() > 0) {
+            s.append('|');
+        }
+        s.append(key).append('=').append(value);
+    }
+
+    /**
+     * Joins the given values to a comma-separated string.
+     *
+     * @param values The values to join.
+     * @return The given values, as a comma-separated string.
+     */
+    private static String join(List<String> values) {
+        StringBuilder s = new StringBuilder();
+        Iterator<String> iValues = values.iterator();
+        while (iValues.hasNext()) {
+            s.append(iValues.next()).append(iValues.hasNext() ? "," : "");
+        }
+        return s.toString();
+    }
+
+    /**
+     * Creates a new builder, initialized with the values of this query.
+     *
+     * @return A new builder, initialized with the values of this query.
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Gets the folder to collect from.
+     *
+     * @return The folder to collect from.
+     */
+    public String getFolder() { return folder; }
+
+    /**
+     * Gets the name of the resource type to collect.
+     *
+     * @return The name of the resource type to collect.
+     */
+    public String getResourceType() { return resourceType; }
+
+    /**
+     * Gets the start of the time frame.
+     *
+     * @return The start of the time frame.
+     */
+    public long getTimeStart() { return timeStart; }
+
+    /**
+     * Gets the end of the time frame.
+     *
+     * @return The end of the time frame.
+     */
+    public long getTimeEnd() { return timeEnd; }
+
+    /**
+     * Gets the name of the start time property.
+     *
+     * @return The name of the start time property.
+     */
+    public String getPropertyTimeStart() { return propertyTimeStart; }
+
+    /**
+     * Gets the name of the end time property.
+     *
+     * @return The name of the end time property.
+     */
+    public String getPropertyTimeEnd() { return propertyTimeEnd; }
+
+    /**
+     * Gets the name of the categories property.
+     *
+     * @return The name of the categories property.
+     */
+    public String getPropertyCategories() { return propertyCategories; }
+
+    /**
+     * Gets the (root paths of the) categories to match, in sorted order.
+     *
+     * @return The (root paths of the) categories to match (unmodifiable).
+     */
+    public List<String> getCategories() { return categories; }
+
+    /**
+     * Gets the folders to exclude, in sorted order.
+     *
+     * @return The folders to exclude (unmodifiable).
+     */
+    public List<String> getExcludedFolders() { return excludedFolders; }
+
+    /**
+     * Gets the maximum number of results.
+     *
+     * @return The maximum number of results.
+     */
+    public int getResultLimit() { return resultLimit; }
+
+    /**
+     * Gets the sort order.
+     *
+     * @return True if sorting descending, false if not.
+     */
+    public boolean isSortDescending() { return sortDescending; }
+
+    /**
+     * Gets whether or not to exclude expired events.
+     *
+     * @return True if expired events are excluded, false if not.
+     */
+    public boolean isExcludeExpired() { return excludeExpired; }
+
+    /**
+     * Gets whether or not to include recurrences.
+     *
+     * @return True if recurrences are included, false if not.
+     */
+    public boolean isIncludeRecurrences() { return includeRecurrences; }
+
+    /**
+     * Gets whether or not to include events that only partially overlap the
+     * time frame.
+     *
+     * @return True if events that only partially overlap are included, false if not.
+     */
+    public boolean isOverlapLenient() { return overlapLenient; }
+
+    /**
+     * Gets the category matching mode.
+     *
+     * @return True if using inclusive category matching, false if exclusive.
+     */
+    public boolean isCategoryInclusive() { return categoryInclusive; }
+
+    /**
+     * Gets whether or not to allow parallel collection.
+     *
+     * @return True if parallel collection is allowed, false if not.
+     */
+    public boolean isParallel() { return parallel; }
+
+    /**
+     * @see Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (!(that instanceof EventQuery)) {
+            return false;
+        }
+        EventQuery other = (EventQuery)that;
+        return timeStart == other.timeStart
+                && timeEnd == other.timeEnd
+                && resultLimit == other.resultLimit
+                && sortDescending == other.sortDescending
+                && excludeExpired == other.excludeExpired
+                && includeRecurrences == other.includeRecurrences
+                && overlapLenient == other.overlapLenient
+                && categoryInclusive == other.categoryInclusive
+                && parallel == other.parallel
+                && equal(folder, other.folder)
+                && equal(resourceType, other.resourceType)
+                && equal(propertyTimeStart, other.propertyTimeStart)
+                && equal(propertyTimeEnd, other.propertyTimeEnd)
+                && equal(propertyCategories, other.propertyCategories)
+                && categories.equals(other.categories)
+                && excludedFolders.equals(other.excludedFolders);
+    }
+
+    /**
+     * Null-safe equality check.
+     *
+     * @param o1 The first object.
+     * @param o2 The second object.
+     * @return True if both objects are null, or equal, false if not.
+     */
+    private static boolean equal(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
+    /**
+     * @see Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + (folder != null ? folder.hashCode() : 0);
+        hash = 31 * hash + (resourceType != null ? resourceType.hashCode() : 0);
+        hash = 31 * hash + (int)(timeStart ^ (timeStart >>> 32));
+        hash = 31 * hash + (int)(timeEnd ^ (timeEnd >>> 32));
+        hash = 31 * hash + (propertyTimeStart != null ? propertyTimeStart.hashCode() : 0);
+        hash = 31 * hash + (propertyTimeEnd != null ? propertyTimeEnd.hashCode() : 0);
+        hash = 31 * hash + (propertyCategories != null ? propertyCategories.hashCode() : 0);
+        hash = 31 * hash + categories.hashCode();
+        hash = 31 * hash + excludedFolders.hashCode();
+        hash = 31 * hash + resultLimit;
+        hash = 31 * hash + (sortDescending ? 1 : 0);
+        hash = 31 * hash + (excludeExpired ? 1 : 0);
+        hash = 31 * hash + (includeRecurrences ? 1 : 0);
+        hash = 31 * hash + (overlapLenient ? 1 : 0);
+        hash = 31 * hash + (categoryInclusive ? 1 : 0);
+        hash = 31 * hash + (parallel ? 1 : 0);
+        return hash;
+    }
+
+    /**
+     * Gets the collector parameter string for this query.
+     *
+     * @return The collector parameter string for this query.
+     * @see #toParameterString()
+     */
+    @Override
+    public String toString() {
+        return toParameterString();
+    }
+}
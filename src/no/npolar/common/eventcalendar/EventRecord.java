@@ -0,0 +1,264 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsProperty;
+import org.opencms.file.CmsPropertyDefinition;
+import org.opencms.file.CmsResource;
+import org.opencms.jsp.CmsJspActionElement;
+import org.opencms.main.CmsException;
+import org.opencms.util.CmsUUID;
+
+/**
+ * The parsed details of an event resource, as held by the {@link EventIndex}.
+ * <p>
+ * A record holds everything needed to create an {@link EventEntry} without
+ * accessing the VFS, but nothing that depends on the current request (like
+ * the locale). Records are immutable, and can safely be shared across requests.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class EventRecord {
+
+    /** The structure ID of the event resource. */
+    private final CmsUUID structureId;
+    /** The resource ID of the event resource. */
+    private final CmsUUID resourceId;
+    /** The root path of the event resource. */
+    private final String rootPath;
+    /** The event's start time, as read from {@link EventEntry#PROPERTY_TIME_START}. */
+    private final long start;
+    /** The event's end time, as read from {@link EventEntry#PROPERTY_TIME_END}. */
+    private final long stop;
+    /** The event's title. */
+    private final String title;
+    /** The event's description. */
+    private final String description;
+    /** The time display mode, one of EventEntry#TIME_DISPLAY_DATEONLY or EventEntry#TIME_DISPLAY_DATETIME. */
+    private final String timeDisplay;
+    /** The event's recurrence rule, or an empty string if none. */
+    private final String recurrenceRule;
+    /** The assigned categories, as read from {@link EventEntry#PROPERTY_CATEGORIES}. */
+    private final String categoriesString;
+    /** The assigned categories, as a (shared) bit set of category ids. */
+    private final BitSet categorySet;
+    /** The resource's release date. */
+    private final long dateReleased;
+    /** The resource's expiration date. */
+    private final long dateExpired;
+    /** The resource's last modification date. */
+    private final long dateLastModified;
+    /** The event's actual start time (adjusted for date-only events). */
+    private final long startTime;
+    /** The start of the time span this event may occupy. */
+    private final long indexStart;
+    /** The end of the time span this event may occupy. */
+    private final long indexEnd;
+
+    /**
+     * Creates a new record by reading the necessary properties from the given
+     * event resource.
+     *
+     * @param cmso Initialized CmsObject, needed to read properties.
+     * @param eventResource The event resource.
+     * @throws CmsException If reading the properties fails.
+     * @throws NumberFormatException If the start or end time property value is not a valid number.
+     */
+    public EventRecord(CmsObject cmso, CmsResource eventResource) throws CmsException {
+        this(eventResource, EventPropertyLoader.read(cmso, eventResource));
+    }
+
+    /**
+     * Creates a new record from the given event resource and its prefetched
+     * properties.
+     *
+     * @param eventResource The event resource.
+     * @param properties The event resource's properties, as loaded by {@link EventPropertyLoader}.
+     * @throws NumberFormatException If the start or end time property value is not a valid number.
+     */
+    public EventRecord(CmsResource eventResource, List<CmsProperty> properties) {
+        this.structureId = eventResource.getStructureId();
+        this.resourceId = eventResource.getResourceId();
+        this.rootPath = eventResource.getRootPath();
+        this.dateReleased = eventResource.getDateReleased();
+        this.dateExpired = eventResource.getDateExpired();
+        this.dateLastModified = eventResource.getDateLastModified();
+        this.title = CmsProperty.get(CmsPropertyDefinition.PROPERTY_TITLE, properties).getValue("");
+        this.start = Long.valueOf(CmsProperty.get(EventEntry.PROPERTY_TIME_START, properties).getValue("0"));
+        this.stop = Long.valueOf(CmsProperty.get(EventEntry.PROPERTY_TIME_END, properties).getValue("0"));
+        this.description = CmsProperty.get(CmsPropertyDefinition.PROPERTY_DESCRIPTION, properties).getValue("");
+        this.timeDisplay = CmsProperty.get(EventEntry.PROPERTY_TIME_DISPLAY, properties).getValue(EventEntry.TIME_DISPLAY_DATETIME);
+        this.recurrenceRule = CmsProperty.get(EventEntry.PROPERTY_RECURRENCE_RULE, properties).getValue("");
+        this.categoriesString = CmsProperty.get(EventEntry.PROPERTY_CATEGORIES, properties).getValue("");
+        this.categorySet = CategoryDictionary.getCategories(categoriesString);
+
+        // Use a "template" event to resolve the actual start and end times
+        // (these are adjusted for events that are set to display date only).
+        // The indexed time span covers both the actual and the stored times,
+        // as some collectors evaluate the stored property values directly.
+        EventEntry event = toEventEntry((Locale)null);
+        this.startTime = event.getStartTime();
+        this.indexStart = Math.min(start, event.getStartTime());
+        if (event.hasRecurrenceRule()) {
+            // Recurrences may occur at any point after the initial start
+            this.indexEnd = Long.MAX_VALUE;
+        } else if (event.hasEndTime()) {
+            this.indexEnd = Math.max(Math.max(start, stop), Math.max(event.getStartTime(), event.getEndTime()));
+        } else {
+            this.indexEnd = Math.max(start, event.getStartTime());
+        }
+    }
+
+    /**
+     * Creates a new event based on this record.
+     *
+     * @param locale The locale to assign to the event.
+     * @return A new event based on this record.
+     */
+    public EventEntry toEventEntry(Locale locale) {
+        return new EventEntry(start, stop, title, description, timeDisplay, locale,
+                                resourceId, structureId, recurrenceRule, categoriesString);
+    }
+
+    /**
+     * Creates a new event based on this record, using the given action element
+     * to set the event's locale and native date format.
+     * <p>
+     * The returned event is identical to one created by
+     * {@link EventEntry#EventEntry(org.opencms.jsp.CmsJspActionElement, org.opencms.file.CmsResource)}.
+     *
+     * @param cms Initialized action element.
+     * @return A new event based on this record.
+     */
+    public EventEntry toEventEntry(CmsJspActionElement cms) {
+        EventEntry event = toEventEntry(cms.getRequestContext().getLocale());
+        event.setNativeDateFormat(cms);
+        return event;
+    }
+
+    /**
+     * Determines if the event resource is released and not expired at the
+     * given time.
+     *
+     * @param time The time to evaluate.
+     * @return True if the event resource is released and not expired at the given time, false if not.
+     */
+    public boolean isReleasedAndNotExpired(long time) {
+        return time >= dateReleased && time < dateExpired;
+    }
+
+    /**
+     * Gets the event's actual start time, as returned by 
+     * {@link EventEntry#getStartTime()}.
+     * <p>
+     * No occurrence of this event (including recurrences) starts before this.
+     *
+     * @return The event's actual start time.
+     */
+    public long getStartTime() { return startTime; }
+
+    /**
+     * Determines if the event has a recurrence rule.
+     *
+     * @return True if the event has a recurrence rule, false if not.
+     */
+    public boolean hasRecurrenceRule() { return !recurrenceRule.isEmpty(); }
+
+    /**
+     * Gets the start of the time span this event may occupy.
+     * <p>
+     * This is the earliest of the event's actual start time (adjusted for
+     * date-only events) and its stored start time.
+     *
+     * @return The start of the time span this event may occupy.
+     */
+    public long getIndexStart() { return indexStart; }
+
+    /**
+     * Gets the end of the time span this event may occupy.
+     * <p>
+     * This is the latest of the event's actual and stored start and end
+     * times. For recurring events, it is <code>Long.MAX_VALUE</code>.
+     *
+     * @return The end of the time span this event may occupy.
+     */
+    public long getIndexEnd() { return indexEnd; }
+
+    /**
+     * Gets the structure ID of the event resource.
+     *
+     * @return The structure ID of the event resource.
+     */
+    public CmsUUID getStructureId() { return structureId; }
+
+    /**
+     * Gets the resource ID of the event resource.
+     *
+     * @return The resource ID of the event resource.
+     */
+    public CmsUUID getResourceId() { return resourceId; }
+
+    /**
+     * Gets the root path of the event resource.
+     *
+     * @return The root path of the event resource.
+     */
+    public String getRootPath() { return rootPath; }
+
+    /**
+     * Gets the last modification date of the event resource, as it was when
+     * this record was created.
+     *
+     * @return The last modification date of the event resource.
+     */
+    public long getDateLastModified() { return dateLastModified; }
+
+    /**
+     * Gets the release date of the event resource.
+     *
+     * @return The release date of the event resource.
+     */
+    public long getDateReleased() { return dateReleased; }
+
+    /**
+     * Gets the expiration date of the event resource.
+     *
+     * @return The expiration date of the event resource.
+     */
+    public long getDateExpired() { return dateExpired; }
+
+    /**
+     * Gets the event's time display mode, one of EventEntry#TIME_DISPLAY_DATEONLY 
+     * or EventEntry#TIME_DISPLAY_DATETIME.
+     *
+     * @return The event's time display mode.
+     */
+    public String getTimeDisplay() { return timeDisplay; }
+
+    /**
+     * Gets the event's recurrence rule, or an empty string if none.
+     *
+     * @return The event's recurrence rule, or an empty string if none.
+     */
+    public String getRecurrenceRule() { return recurrenceRule; }
+
+    /**
+     * Gets the event's categories string, as read from the property
+     * {@link EventEntry#PROPERTY_CATEGORIES}, or an empty string if none.
+     *
+     * @return The event's categories string, or an empty string if none.
+     */
+    public String getCategoriesString() { return categoriesString; }
+
+    /**
+     * Gets the event's categories, as a bit set of category ids.
+     * <p>
+     * The bit set is shared, and must not be modified.
+     *
+     * @return The event's categories, as a bit set of category ids.
+     * @see CategoryDictionary#getCategories(java.lang.String)
+     */
+    public BitSet getCategorySet() { return categorySet; }
+}
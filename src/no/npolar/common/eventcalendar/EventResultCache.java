@@ -0,0 +1,375 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.opencms.file.CmsObject;
+import org.opencms.main.CmsEvent;
+import org.opencms.main.CmsLog;
+import org.opencms.main.I_CmsEventListener;
+import org.opencms.main.OpenCms;
+
+/**
+ * A shared cache of collected events, keyed by canonical collector
+ * parameters.
+ * <p>
+ * Identical collector parameter strings are typically built many times
+ * over, e.g. by an "upcoming events" box on the front page. This cache
+ * stores the results of {@link TimeRangeCategoryEventCollector#getEvents(org.opencms.jsp.CmsJspActionElement, java.lang.String, no.npolar.common.eventcalendar.EventCursor)},
+ * so that such repeated requests do not have to collect the same events
+ * again.
+ * <p>
+ * Cache keys are created by {@link #getKey(org.opencms.file.CmsObject, no.npolar.common.eventcalendar.EventQuery, no.npolar.common.eventcalendar.EventCursor)},
+ * from the {@link EventQuery}, so that e.g. the order of the categories
+ * does not matter. Time range bounds that are not on a whole minute - as is
+ * typical for ranges relative to "now" - are rounded down to the minute.
+ * Results must be collected using the same rounded bounds, see
+ * {@link #getCanonicalQuery(no.npolar.common.eventcalendar.EventQuery)}, so
+ * that each cached result depends only on its key.
+ * <p>
+ * The cache is bounded by the total number of cached events (its weight),
+ * and the least recently used entries are evicted first. Entries also
+ * expire after {@link #TTL}. The entire cache is cleared whenever a project
+ * is published, or the caches are cleared. Results collected before the
+ * cache was last cleared are not cached, see {@link #getGeneration()}.
+ * <p>
+ * Only requests by the guest user in the online project are cached, as the
+ * results could otherwise depend on the user's permissions.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class EventResultCache {
+
+    /** The log object for this class. */
+    private static final Log LOG = CmsLog.getLog(EventResultCache.class);
+    /** The maximum total number of events held by the cache. */
+    public static final int MAX_WEIGHT = 20000;
+    /** The time to live for cache entries, in milliseconds. */
+    public static final long TTL = 1000 * 60 * 5;
+    /** The bucket size for time range bounds, in milliseconds. */
+    public static final long BUCKET_SIZE = 1000 * 60;
+
+    /** The cache entries, in access order. */
+    private static final LinkedHashMap<Object, Entry> ENTRIES = new LinkedHashMap<Object, Entry>(64, 0.75f, true);
+    /** The current total weight of the cache. */
+    private static int weight = 0;
+    /** Flag indicating whether or not the event listener is registered. */
+    private static boolean listenerRegistered = false;
+    /** The number of cache hits. */
+    private static final AtomicLong HITS = new AtomicLong();
+    /** The number of cache misses. */
+    private static final AtomicLong MISSES = new AtomicLong();
+    /** The cache generation, incremented whenever the cache is cleared. */
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    /**
+     * A cached result.
+     */
+    public static class Entry {
+        /** The collected events. */
+        private final List<EventEntry> events;
+        /** The total number of events, before limiting. */
+        private final int resultsTotal;
+        /** The categories found on the events, before limiting. */
+        private final Map<String, Integer> resultCategories;
+        /** The time this entry was created. */
+        private final long created;
+
+        /**
+         * Creates a new entry, holding copies of the given result.
+         *
+         * @param events The collected events.
+         * @param resultsTotal The total number of events, before limiting.
+         * @param resultCategories The categories found on the events, before limiting.
+         */
+        private Entry(List<EventEntry> events, int resultsTotal, Map<String, Integer> resultCategories) {
+            this.events = copy(events);
+            this.resultsTotal = resultsTotal;
+            this.resultCategories = Collections.unmodifiableMap(new HashMap<String, Integer>(resultCategories));
+            this.created = System.currentTimeMillis();
+        }
+
+        /**
+         * Gets copies of the cached events, which the caller is free to modify.
+         *
+         * @return Copies of the cached events.
+         */
+        public List<EventEntry> getEvents() { return copy(events); }
+
+        /**
+         * Gets the total number of events, before limiting.
+         *
+         * @return The total number of events, before limiting.
+         */
+        public int getTotalResults() { return resultsTotal; }
+
+        /**
+         * Gets the categories found on the events, before limiting.
+         *
+         * @return The categories found on the events, before limiting (unmodifiable).
+         */
+        public Map<String, Integer> getResultCategories() { return resultCategories; }
+
+        /**
+         * Gets the weight of this entry.
+         *
+         * @return The weight of this entry.
+         */
+        private int getWeight() { return events.size() + 1; }
+
+        /**
+         * Determines if this entry has expired at the given time.
+         *
+         * @param time The time to evaluate.
+         * @return True if this entry has expired, false if not.
+         */
+        private boolean isExpired(long time) { return time - created > TTL; }
+    }
+
+    /**
+     * Creates a list of copies of the given events.
+     *
+     * @param events The events to copy.
+     * @return A list of copies of the given events.
+     */
+    private static List<EventEntry> copy(List<EventEntry> events) {
+        List<EventEntry> copies = new ArrayList<EventEntry>(events.size());
+        for (EventEntry event : events) {
+            copies.add(new EventEntry(event));
+        }
+        return copies;
+    }
+
+    /**
+     * Determines if results can be cached in the given context.
+     *
+     * @param cmso Initialized CmsObject, representing the current context.
+     * @return True if results can be cached in the given context, false if not.
+     */
+    public static boolean isCacheable(CmsObject cmso) {
+        return cmso.getRequestContext().getCurrentProject().isOnlineProject()
+                && cmso.getRequestContext().getCurrentUser().isGuestUser();
+    }
+
+    /**
+     * Gets the canonical version of the given query, that is, the query with
+     * its time frame bucketed.
+     * <p>
+     * Results that are to be cached must be collected using this query, 
+     * rather than the given one, as the cache key is based on it.
+     *
+     * @param query The query.
+     * @return The canonical version of the given query.
+     */
+    public static EventQuery getCanonicalQuery(EventQuery query) {
+        long timeStart = bucket(query.getTimeStart());
+        long timeEnd = bucket(query.getTimeEnd());
+        if (timeStart == query.getTimeStart() && timeEnd == query.getTimeEnd()) {
+            return query;
+        }
+        return query.toBuilder().setTimeFrame(timeStart, timeEnd).build();
+    }
+
+    /**
+     * Creates the canonical cache key for the given query.
+     * <p>
+     * The key is based on the canonical query, see {@link #getCanonicalQuery(no.npolar.common.eventcalendar.EventQuery)},
+     * with the parallel flag (which does not affect the result) cleared.
+     *
+     * @param cmso Initialized CmsObject, representing the current context.
+     * @param query The query.
+     * @param cursor The cursor to collect events after, or <code>null</code> if none.
+     * @return The canonical cache key for the given query.
+     */
+    public static Object getKey(CmsObject cmso, EventQuery query, EventCursor cursor) {
+        EventQuery canonical = getCanonicalQuery(query).toBuilder()
+                .setParallel(false)
+                .build();
+        return Arrays.asList(
+                canonical,
+                cmso.getRequestContext().getSiteRoot(),
+                String.valueOf(cmso.getRequestContext().getLocale()),
+                String.valueOf(cursor)
+        );
+    }
+
+    /**
+     * Rounds the given time range bound down to the nearest bucket, unless
+     * it is on a bucket boundary already (or unbounded).
+     *
+     * @param time The time range bound.
+     * @return The bucketed time range bound.
+     */
+    private static long bucket(long time) {
+        if (time == Long.MIN_VALUE || time == Long.MAX_VALUE) {
+            return time;
+        }
+        return time - ((time % BUCKET_SIZE + BUCKET_SIZE) % BUCKET_SIZE);
+    }
+
+    /**
+     * Gets the cached result for the given key.
+     *
+     * @param key The cache key, as created by {@link #getKey(org.opencms.file.CmsObject, no.npolar.common.eventcalendar.EventQuery, no.npolar.common.eventcalendar.EventCursor)}.
+     * @return The cached result, or <code>null</code> if none.
+     */
+    public static Entry get(Object key) {
+        Entry entry = null;
+        synchronized (ENTRIES) {
+            entry = ENTRIES.get(key);
+            if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+                remove(key);
+                entry = null;
+            }
+        }
+        (entry == null ? MISSES : HITS).incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Gets the current cache generation.
+     * <p>
+     * Read this before collecting a result, and pass it on to 
+     * {@link #put(java.lang.Object, long, java.util.List, int, java.util.Map)}: 
+     * If the cache is cleared in the meantime, the result may be outdated, 
+     * and is not cached.
+     *
+     * @return The current cache generation.
+     */
+    public static long getGeneration() { return GENERATION.get(); }
+
+    /**
+     * Caches the given result, unless the cache was cleared after it was
+     * collected.
+     * <p>
+     * Results heavier than a quarter of {@link #MAX_WEIGHT} are not cached.
+     *
+     * @param key The cache key, as created by {@link #getKey(org.opencms.file.CmsObject, no.npolar.common.eventcalendar.EventQuery, no.npolar.common.eventcalendar.EventCursor)}.
+     * @param generation The cache generation, as read by {@link #getGeneration()} before collecting the result.
+     * @param events The collected events.
+     * @param resultsTotal The total number of events, before limiting.
+     * @param resultCategories The categories found on the events, before limiting.
+     */
+    public static void put(Object key, long generation, List<EventEntry> events, int resultsTotal, Map<String, Integer> resultCategories) {
+        if (events.size() + 1 > MAX_WEIGHT / 4) {
+            return;
+        }
+        registerListener();
+        Entry entry = new Entry(events, resultsTotal, resultCategories);
+        synchronized (ENTRIES) {
+            if (GENERATION.get() != generation) {
+                return; // Cleared while collecting => possibly outdated
+            }
+            remove(key);
+            ENTRIES.put(key, entry);
+            weight += entry.getWeight();
+            // Evict the least recently used entries, until within bounds
+            Iterator<Map.Entry<Object, Entry>> iEntries = ENTRIES.entrySet().iterator();
+            while (weight > MAX_WEIGHT && iEntries.hasNext()) {
+                weight -= iEntries.next().getValue().getWeight();
+                iEntries.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the entry with the given key. Callers must hold the lock.
+     *
+     * @param key The cache key.
+     */
+    private static void remove(Object key) {
+        Entry removed = ENTRIES.remove(key);
+        if (removed != null) {
+            weight -= removed.getWeight();
+        }
+    }
+
+    /**
+     * Clears the cache.
+     */
+    public static void clear() {
+        synchronized (ENTRIES) {
+            GENERATION.incrementAndGet();
+            ENTRIES.clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * Gets the number of cache hits.
+     *
+     * @return The number of cache hits.
+     */
+    public static long getHits() { return HITS.get(); }
+
+    /**
+     * Gets the number of cache misses.
+     *
+     * @return The number of cache misses.
+     */
+    public static long getMisses() { return MISSES.get(); }
+
+    /**
+     * Gets the cache hit ratio, a value between 0 and 1.
+     *
+     * @return The cache hit ratio, or 0 if the cache has not been used.
+     */
+    public static double getHitRatio() {
+        long hits = HITS.get();
+        long total = hits + MISSES.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    /**
+     * Gets the number of cached results.
+     *
+     * @return The number of cached results.
+     */
+    public static int size() {
+        synchronized (ENTRIES) {
+            return ENTRIES.size();
+        }
+    }
+
+    /**
+     * Gets the current weight of the cache, that is, the total number of
+     * cached events (plus one per result).
+     *
+     * @return The current weight of the cache.
+     */
+    public static int getWeight() {
+        synchronized (ENTRIES) {
+            return weight;
+        }
+    }
+
+    /**
+     * Registers the event listener that clears the cache, unless that has
+     * been done already.
+     */
+    private static synchronized void registerListener() {
+        if (!listenerRegistered) {
+            OpenCms.addCmsEventListener(new I_CmsEventListener() {
+                    public void cmsEvent(CmsEvent event) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Clearing event result cache (hit ratio was " + getHitRatio() + ").");
+                        }
+                        clear();
+                    }
+                },
+                new int[] {
+                    I_CmsEventListener.EVENT_PUBLISH_PROJECT,
+                    I_CmsEventListener.EVENT_CLEAR_CACHES
+                }
+            );
+            listenerRegistered = true;
+        }
+    }
+}
@@ -22,10 +22,11 @@ import org.opencms.relations.CmsCategory;
  *  <li>Exclude folders if necessary</li>
  * </ul>
  * <p>
+ * Events can be collected page by page (e.g. for "load more" on the 
+ * presentation layer) using {@link #getPage(CollectorTimeRange, int, EventCursor)}.
+ * <p>
  * ToDo: <br/>
- * 1: Introduce offset, so that we can use get(range, limit, offset), a
- *      prerequisite for implementing "load more" on the presentation layer.<br/>
- * 2: Rename some of the setter methods - setSortMode(boolean) etc. doesn't make
+ * 1: Rename some of the setter methods - setSortMode(boolean) etc. doesn't make
  *      much sense.
  * 
  * @author Paul-Inge Flakstad, Norwegian Polar Institute <flakstad at npolar.no>
@@ -50,6 +51,8 @@ public class EventsCollector {
         private boolean sortDescending = true;
         /** Use {@link ResourceCategoriesFilter#MODE_EXCLUSIVE} category filtering? */
         private boolean categoriesMustAllMatch = true;
+        /** Allow parallel collection? */
+        private boolean parallel = false;
         /** Holds URIs to excluded folders (if any). */
         private List<String> foldersExcluded = null;
         //** Holds URIs to folders containing undated events (if any). */
@@ -87,6 +90,8 @@ public class EventsCollector {
     
     private int lastResultsTotal = -1;
     private Map<String, Integer> lastResultCategories = null;
+    /** The cursor to use for fetching the page after the previous page, if any. */
+    private EventCursor nextCursor = null;
     
     /*public final int CATEGORY_MATCH_MODE_EXCLUSIVE = 0;
     public final int CATEGORY_MATCH_MODE_INCLUSIVE = 1;
@@ -149,7 +154,7 @@ public class EventsCollector {
      */
     public List<EventEntry> get(String folder, long start, long end, int limit) throws CmsException {
         this.settings.folder = folder;        
-        return collectEvents(getCollectorParameterString(start, end, limit));
+        return collectEvents(getQuery(start, end, limit));
     }
     
     /**
@@ -163,7 +168,7 @@ public class EventsCollector {
      */
     public List<EventEntry> get(String folder, CollectorTimeRange range, int limit) throws CmsException {
         this.settings.folder = folder;        
-        return collectEvents(getCollectorParameterString(range.getStart(), range.getEnd(), limit));
+        return collectEvents(getQuery(range.getStart(), range.getEnd(), limit));
     }
     
     /**
@@ -176,7 +181,7 @@ public class EventsCollector {
      * @throws CmsException 
      */
     public List<EventEntry> get(long start, long end, int limit) throws CmsException {
-        return collectEvents(getCollectorParameterString(start, end, limit));
+        return collectEvents(getQuery(start, end, limit));
     }
     
     /**
@@ -188,57 +193,135 @@ public class EventsCollector {
      * @throws CmsException 
      */
     public List<EventEntry> get(CollectorTimeRange range, int limit) throws CmsException {
-        return collectEvents(getCollectorParameterString(range.getStart(), range.getEnd(), limit));
+        return collectEvents(getQuery(range.getStart(), range.getEnd(), limit));
+    }
+    
+    /**
+     * Gets a lazy iterator over events, using the current settings and the 
+     * provided arguments.
+     * <p>
+     * The iterator returns the same events, in the same order, as 
+     * {@link #get(no.npolar.common.eventcalendar.CollectorTimeRange, int)}, 
+     * but evaluates them one by one as it is advanced. Use this when only 
+     * some of the events may actually be read (e.g. when rendering stops 
+     * once a box is full).
+     * <p>
+     * Note that {@link #getTotalResults()} and {@link #getResultCategories()} 
+     * are not updated by this method.
+     * 
+     * @param range The time range.
+     * @param limit The maximum number of events to iterate over.
+     * @return A lazy iterator over events, collected using the current settings and the provided arguments.
+     * @throws CmsException 
+     * @see TimeRangeCategoryEventCollector#iterateEvents(org.opencms.jsp.CmsJspActionElement, no.npolar.common.eventcalendar.EventQuery) 
+     */
+    public Iterator<EventEntry> iterate(CollectorTimeRange range, int limit) throws CmsException {
+        return iterate(range.getStart(), range.getEnd(), limit);
+    }
+    
+    /**
+     * Gets a lazy iterator over events, using the current settings and the 
+     * provided arguments.
+     * 
+     * @param start The time frame start.
+     * @param end The time frame end.
+     * @param limit The maximum number of events to iterate over.
+     * @return A lazy iterator over events, collected using the current settings and the provided arguments.
+     * @throws CmsException 
+     * @see #iterate(no.npolar.common.eventcalendar.CollectorTimeRange, int) 
+     */
+    public Iterator<EventEntry> iterate(long start, long end, int limit) throws CmsException {
+        return new TimeRangeCategoryEventCollector().iterateEvents(cms, getQuery(start, end, limit));
+    }
+    
+    /**
+     * Collects a page of events, using the current settings and the provided 
+     * arguments.
+     * <p>
+     * To get the first page, pass <code>null</code> as the cursor. To get the 
+     * next page, pass the cursor returned by {@link #getNextCursor()} after 
+     * the previous page was collected. Only events following the cursor are 
+     * collected and sorted, so the cost of a page does not grow with the 
+     * number of pages before it.
+     * <p>
+     * Note that {@link #getTotalResults()} and {@link #getResultCategories()} 
+     * will cover only the events following the given cursor.
+     * 
+     * @param range The time range.
+     * @param pageSize The maximum number of events on the page.
+     * @param after The cursor to collect events after, or <code>null</code> to get the first page.
+     * @return A list of events, collected using the current settings and the provided arguments.
+     * @throws CmsException 
+     * @see #getNextCursor()
+     */
+    public List<EventEntry> getPage(CollectorTimeRange range, int pageSize, EventCursor after) throws CmsException {
+        return getPage(range.getStart(), range.getEnd(), pageSize, after);
+    }
+    
+    /**
+     * Collects a page of events, using the current settings and the provided 
+     * arguments.
+     * 
+     * @param start The time frame start.
+     * @param end The time frame end.
+     * @param pageSize The maximum number of events on the page.
+     * @param after The cursor to collect events after, or <code>null</code> to get the first page.
+     * @return A list of events, collected using the current settings and the provided arguments.
+     * @throws CmsException 
+     * @see #getPage(no.npolar.common.eventcalendar.CollectorTimeRange, int, no.npolar.common.eventcalendar.EventCursor) 
+     */
+    public List<EventEntry> getPage(long start, long end, int pageSize, EventCursor after) throws CmsException {
+        TimeRangeCategoryEventCollector collector = new TimeRangeCategoryEventCollector();
+        List<EventEntry> results = collector.getEvents(cms, getQuery(start, end, pageSize), after);
+        this.lastResultsTotal = collector.getTotalResults();
+        this.lastResultCategories = collector.getResultCategories();
+        this.nextCursor = (!results.isEmpty() && lastResultsTotal > results.size()) ? 
+                EventCursor.after(results.get(results.size() - 1)) 
+                : null;
+        return results;
+    }
+    
+    /**
+     * Gets the cursor to pass to {@link #getPage(no.npolar.common.eventcalendar.CollectorTimeRange, int, no.npolar.common.eventcalendar.EventCursor)} 
+     * in order to collect the page following the previously collected page.
+     * 
+     * @return The cursor to use for collecting the next page, or <code>null</code> if there are no more events (or no page was collected).
+     */
+    public EventCursor getNextCursor() {
+        return this.nextCursor;
     }
     
     /**
-     * Gets a collector parameter string that can be used to pass parameters
-     * to the CmsTimeRangeCategoryCollector.
+     * Gets the query to pass to the collector, based on the current settings 
+     * and the given arguments.
      * 
      * @param start The time range start time
      * @param end The time range end time
-     * @param eventsFolder The folder to collect resources from
-     * @param categories The categories used to filter collected resources.
-     * @param sortDescending Sort ordering
-     * @param resultLimit Maximum number of resources to collect
-     * 
-     * @return A parameter string that can be used to pass parameters to the CmsTimeRangeCategoryCollector
-     */
-    private String getCollectorParameterString(long start, 
-                                                long end, 
-                                                //String eventsFolder, 
-                                                //List<CmsCategory> categories,
-                                                int resultLimit) {
-        String collectorParam = TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_RESOURCE + "=" + settings.folder;
-        collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_RESOURCE_TYPE + "=" + EventEntry.RESOURCE_TYPE_NAME_EVENT;
-        collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_TIMEFRAME_START + "=" + String.valueOf(start);
-        collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_TIMEFRAME_END + "=" + String.valueOf(end);
-        collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_PROPERTY_TIME_START + "=" + EventEntry.PROPERTY_TIME_START;
-        collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_PROPERTY_TIME_END + "=" + EventEntry.PROPERTY_TIME_END;
-        collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_EXCLUDE_EXPIRED + "=" + String.valueOf(!settings.includeExpired);
-        collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_OVERLAP_LENIENT + "=" + String.valueOf(settings.includeEventsThatOverlap);
-        collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_CATEGORY_INCLUSIVE + "=" + String.valueOf(!settings.categoriesMustAllMatch);
-        collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_INCLUDE_RECURRENCES + "=" + String.valueOf(settings.includeEventRecurrences);
-        collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_SORT_DESCENDING + "=" + String.valueOf(settings.sortDescending);
-        collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_RESULT_LIMIT + "=" + (resultLimit == -1 ? String.valueOf(Integer.MAX_VALUE) : String.valueOf(resultLimit));
-        if (this.settings.categories != null) {
-            Iterator<CmsCategory> iCategories = this.settings.categories.iterator();
-            if (iCategories.hasNext()) {
-                collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_PROPERTY_CATEGORIES + "=" + EventEntry.PROPERTY_CATEGORIES;
-                collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_CATEGORIES + "=";
-                while (iCategories.hasNext()) {
-                    collectorParam += iCategories.next().getRootPath() + (iCategories.hasNext() ? "," : "");
-                }
-            }
-        }
-        if (!settings.foldersExcluded.isEmpty()) {
-            Iterator<String> iFoldersExcluded = settings.foldersExcluded.iterator();
-            collectorParam += "|" + TimeRangeCategoryEventCollector.CollectorDataPropertyBased.PARAM_KEY_EXCLUDE_FOLDERS + "=";
-            while (iFoldersExcluded.hasNext()) {
-                collectorParam += iFoldersExcluded.next() + (iFoldersExcluded.hasNext() ? "," : "");
+     * @param resultLimit Maximum number of resources to collect, or -1 for no limit
+     * 
+     * @return The query to pass to the collector.
+     */
+    private EventQuery getQuery(long start, long end, int resultLimit) {
+        EventQuery.Builder query = new EventQuery.Builder()
+                .setFolder(settings.folder)
+                .setResourceType(EventEntry.RESOURCE_TYPE_NAME_EVENT)
+                .setTimeFrame(start, end)
+                .setTimeProperties(EventEntry.PROPERTY_TIME_START, EventEntry.PROPERTY_TIME_END)
+                .setExcludeExpired(!settings.includeExpired)
+                .setOverlapLenient(settings.includeEventsThatOverlap)
+                .setCategoryInclusive(!settings.categoriesMustAllMatch)
+                .setIncludeRecurrences(settings.includeEventRecurrences)
+                .setSortDescending(settings.sortDescending)
+                .setParallel(settings.parallel)
+                .setResultLimit(resultLimit)
+                .setExcludedFolders(settings.foldersExcluded);
+        if (this.settings.categories != null && !this.settings.categories.isEmpty()) {
+            query.setCategoriesProperty(EventEntry.PROPERTY_CATEGORIES);
+            for (CmsCategory category : this.settings.categories) {
+                query.addCategory(category.getRootPath());
             }
         }
-        return collectorParam;
+        return query.build();
     }
 
     /**
@@ -251,7 +334,7 @@ public class EventsCollector {
      * 
      * @throws org.opencms.main.CmsException If something goes wrong when attempting to collect the events
      * 
-     * @see #getCollectorParameterString(java.lang.String, java.lang.String, java.lang.String, java.util.List, boolean, int)
+     * @see #getQuery(long, long, int)
      * @see TimeRangeCategoryEventCollector#getEvents(org.opencms.file.CmsObject, java.lang.String) 
      */
     protected List<EventEntry> collectEvents(CmsJspActionElement cms, String collectorParam) throws CmsException {
@@ -287,7 +370,7 @@ public class EventsCollector {
      * @param collectorParam The collector parameters
      * @return A list of EventEntry objects collected using the given parameters
      * @throws org.opencms.main.CmsException If something goes wrong when attempting to collect the events
-     * @see #getCollectorParameterString(java.lang.String, java.lang.String, java.lang.String, java.util.List, boolean, int)
+     * @see #getQuery(long, long, int)
      * @see TimeRangeCategoryEventCollector#getEvents(org.opencms.file.CmsObject, java.lang.String)
      */
     protected List<EventEntry> collectEvents(String collectorParam) throws CmsException {
@@ -298,6 +381,22 @@ public class EventsCollector {
         return results;
     }
     
+    /**
+     * Collects events using the given query.
+     * 
+     * @param query The query
+     * @return A list of EventEntry objects collected using the given query
+     * @throws org.opencms.main.CmsException If something goes wrong when attempting to collect the events
+     * @see TimeRangeCategoryEventCollector#getEvents(org.opencms.jsp.CmsJspActionElement, no.npolar.common.eventcalendar.EventQuery) 
+     */
+    protected List<EventEntry> collectEvents(EventQuery query) throws CmsException {
+        TimeRangeCategoryEventCollector collector = new TimeRangeCategoryEventCollector();
+        List<EventEntry> results = collector.getEvents(cms, query);
+        this.lastResultsTotal = collector.getTotalResults();
+        this.lastResultCategories = collector.getResultCategories();
+        return results;
+    }
+    
     /**
      * Gets the total results of the previous collect operation, <em>before</em> 
      * any shrinking/limiting took place.
@@ -333,6 +432,7 @@ public class EventsCollector {
         this.settings = new EventsCollectorSettings();
         this.lastResultsTotal = -1;
         this.lastResultCategories.clear();
+        this.nextCursor = null;
         return this;
     }
     
@@ -489,6 +589,22 @@ public class EventsCollector {
         return this;
     }
     
+    /**
+     * Sets whether or not events may be collected in parallel, using multiple 
+     * threads.
+     * <p>
+     * By default, events are collected sequentially. Parallel collection 
+     * can speed up queries that span many events (e.g. catch-all or year 
+     * queries), and returns the exact same result.
+     * 
+     * @param parallel Pass <code>true</code> to allow parallel collection, or <code>false</code> to collect sequentially.
+     * @return This instance, updated.
+     */
+    public EventsCollector setParallelCollection(boolean parallel) {
+        this.settings.parallel = parallel;
+        return this;
+    }
+    
     /**
      * Determines whether or not recurrences will be included.
      * 
@@ -523,4 +639,11 @@ public class EventsCollector {
      * @return True if the collector uses exclusive (match ALL) category matching, or false otherwise.
      */
     public boolean isCategoriesMustAllMatch() { return this.settings.categoriesMustAllMatch; }
+    
+    /** 
+     * Determines whether or not events may be collected in parallel. 
+     * 
+     * @return True if events may be collected in parallel, false if not.
+     */
+    public boolean isParallel() { return this.settings.parallel; }
 }
@@ -0,0 +1,147 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A path trie of flagged folders, used to classify resources by the folders
+ * they are located in.
+ * <p>
+ * Each folder is flagged with a value (e.g. "excluded"). Looking up a
+ * resource path returns the value of the nearest flagged folder containing
+ * that path, in a single walk down the trie, regardless of how many folders
+ * are flagged.
+ * <p>
+ * Folders are identified by their path segments, so <code>/a/b/</code> and
+ * <code>/a/b</code> denote the same folder. The root folder can not be
+ * flagged.
+ *
+ * @param <V> The type of value used to flag folders.
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class FolderTrie<V> {
+
+    /**
+     * A node in the trie, representing a single folder.
+     *
+     * @param <V> The type of value used to flag folders.
+     */
+    private static class Node<V> {
+        /** The sub-folder nodes, keyed by folder name. */
+        private Map<String, Node<V>> children = null;
+        /** The value this folder is flagged with, if any. */
+        private V value = null;
+
+        /**
+         * Gets the child node for the given folder name.
+         *
+         * @param name The folder name.
+         * @return The child node for the given folder name, or <code>null</code> if none.
+         */
+        private Node<V> getChild(String name) {
+            return children == null ? null : children.get(name);
+        }
+
+        /**
+         * Gets the child node for the given folder name, creating it if
+         * necessary.
+         *
+         * @param name The folder name.
+         * @return The child node for the given folder name.
+         */
+        private Node<V> getOrCreateChild(String name) {
+            if (children == null) {
+                children = new HashMap<String, Node<V>>(4);
+            }
+            Node<V> child = children.get(name);
+            if (child == null) {
+                child = new Node<V>();
+                children.put(name, child);
+            }
+            return child;
+        }
+    }
+
+    /** The root node. */
+    private final Node<V> root = new Node<V>();
+    /** The number of flagged folders. */
+    private int size = 0;
+
+    /**
+     * Flags the given folder with the given value, replacing any previous
+     * value.
+     *
+     * @param folder The folder path.
+     * @param value The value to flag the folder with.
+     */
+    public void put(String folder, V value) {
+        Node<V> node = root;
+        int start = 0;
+        int length = folder.length();
+        while (start < length) {
+            int end = folder.indexOf('/', start);
+            if (end == -1) {
+                end = length;
+            }
+            if (end > start) {
+                node = node.getOrCreateChild(folder.substring(start, end));
+            }
+            start = end + 1;
+        }
+        if (node != root) {
+            if (node.value == null) {
+                size++;
+            }
+            node.value = value;
+        }
+    }
+
+    /**
+     * Gets the value of the nearest flagged folder that contains the given
+     * path.
+     * <p>
+     * A path that ends with a slash denotes a folder, which is considered to
+     * contain itself. The last segment of any other path denotes a file,
+     * and is ignored.
+     *
+     * @param path The path of the resource to classify.
+     * @return The value of the nearest flagged folder containing the given path, or <code>null</code> if none.
+     */
+    public V get(String path) {
+        V nearest = null;
+        Node<V> node = root;
+        int start = 0;
+        int end;
+        while ((end = path.indexOf('/', start)) != -1) {
+            if (end > start) {
+                node = node.getChild(path.substring(start, end));
+                if (node == null) {
+                    break;
+                }
+                if (node.value != null) {
+                    nearest = node.value;
+                }
+            }
+            start = end + 1;
+        }
+        return nearest;
+    }
+
+    /**
+     * Gets the number of flagged folders.
+     *
+     * @return The number of flagged folders.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Determines if no folders are flagged.
+     *
+     * @return True if no folders are flagged, false if not.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,87 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable set of path prefixes, used to determine if a path starts
+ * with any of them in O(log n) time.
+ * <p>
+ * The prefixes are held sorted, with any prefix that is covered by a shorter
+ * prefix removed. Among the remaining prefixes, the only candidate that can
+ * be a prefix of a given path is the greatest one that is less than or equal
+ * to the path, which is found by binary search.
+ * <p>
+ * Matching is done on plain strings, exactly like {@link String#startsWith(java.lang.String)}.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class PathPrefixSet {
+
+    /** The prefixes, sorted, with covered prefixes removed. */
+    private final String[] prefixes;
+
+    /**
+     * Creates a new set holding the given prefixes.
+     *
+     * @param prefixes The prefixes.
+     */
+    public PathPrefixSet(Collection<String> prefixes) {
+        String[] sorted = prefixes.toArray(new String[prefixes.size()]);
+        Arrays.sort(sorted);
+        List<String> minimal = new ArrayList<String>(sorted.length);
+        String previous = null;
+        for (String prefix : sorted) {
+            if (previous == null || !prefix.startsWith(previous)) {
+                minimal.add(prefix);
+                previous = prefix;
+            }
+        }
+        this.prefixes = minimal.toArray(new String[minimal.size()]);
+    }
+
+    /**
+     * Determines if the given path starts with any of the prefixes in this set.
+     *
+     * @param path The path to evaluate.
+     * @return True if the given path starts with any of the prefixes in this set, false if not.
+     */
+    public boolean matches(String path) {
+        if (prefixes.length == 0) {
+            return false;
+        }
+        int i = Arrays.binarySearch(prefixes, path);
+        if (i >= 0) {
+            return true; // Exact match
+        }
+        int floor = -i - 2; // The greatest prefix less than the path
+        return floor >= 0 && path.startsWith(prefixes[floor]);
+    }
+
+    /**
+     * Determines if this set holds any prefix that starts with, and is longer
+     * than, the given path.
+     * <p>
+     * If so, some (but not necessarily all) paths starting with the given 
+     * path may match this set.
+     *
+     * @param path The path to evaluate.
+     * @return True if this set holds any prefix that starts with, and is longer than, the given path, false if not.
+     */
+    public boolean hasPrefixBelow(String path) {
+        int i = Arrays.binarySearch(prefixes, path);
+        int ceiling = i >= 0 ? i + 1 : -i - 1; // The least prefix greater than the path
+        return ceiling < prefixes.length && prefixes[ceiling].startsWith(path);
+    }
+
+    /**
+     * Determines if this set is empty.
+     *
+     * @return True if this set is empty, false if not.
+     */
+    public boolean isEmpty() {
+        return prefixes.length == 0;
+    }
+}
@@ -0,0 +1,365 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.logging.Log;
+import org.opencms.main.CmsLog;
+import org.opencms.util.CmsUUID;
+
+/**
+ * A resident store of pre-expanded recurrences, covering a rolling horizon
+ * around the current time.
+ * <p>
+ * The store holds the start and end times of all recurrences of each
+ * recurring event in the {@link EventIndex}, within the horizon (by default
+ * {@link #DEFAULT_DAYS_PAST} days back to {@link #DEFAULT_DAYS_FUTURE} days
+ * ahead). It is maintained by {@link RecurrenceHorizonJob}, which should be
+ * scheduled to run e.g. nightly: On each run, the horizon is moved, and the
+ * stored recurrences are shrunk at the front and extended at the end.
+ * Events are expanded from scratch only when new, or when any of the
+ * details that define their recurrences - the recurrence rule, the start and
+ * end times, or the time display mode - have changed.
+ * <p>
+ * At request time, {@link #getRecurrences(no.npolar.common.eventcalendar.EventEntry, long, long)}
+ * and {@link #iterateRecurrences(no.npolar.common.eventcalendar.EventEntry, long, long)}
+ * look up the stored recurrences, if they cover the requested time frame and
+ * were expanded from identical details. Otherwise, they fall back to
+ * expanding the recurrences on the fly. As stored recurrences are only times,
+ * this is safe for any user.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class RecurrenceHorizon {
+
+    /** The log object for this class. */
+    private static final Log LOG = CmsLog.getLog(RecurrenceHorizon.class);
+    /** The default number of days the horizon reaches into the past. */
+    public static final int DEFAULT_DAYS_PAST = 365;
+    /** The default number of days the horizon reaches into the future. */
+    public static final int DEFAULT_DAYS_FUTURE = 730;
+    /** One day, in milliseconds. */
+    private static final long DAY = 1000L * 60 * 60 * 24;
+
+    /** The stored recurrences, keyed by the structure ID of the recurring event. */
+    private static final Map<CmsUUID, Entry> ENTRIES = new ConcurrentHashMap<CmsUUID, Entry>();
+
+    /**
+     * The stored recurrences of a single event. Entries are immutable, and
+     * replaced as a whole when the horizon moves.
+     */
+    private static class Entry {
+        /** The recurrence rule the recurrences were expanded from. */
+        private final String rule;
+        /** The start time the recurrences were expanded from. */
+        private final long startTime;
+        /** The end time the recurrences were expanded from. */
+        private final long endTime;
+        /** Whether or not the event had an end time. */
+        private final boolean hasEndTime;
+        /** The time display mode the recurrences were expanded with. */
+        private final String timeDisplay;
+        /** The start of the time frame covered by this entry. */
+        private final long horizonStart;
+        /** The end of the time frame covered by this entry. */
+        private final long horizonEnd;
+        /** The start times of the recurrences, ascending. */
+        private final long[] starts;
+        /** The end times of the recurrences, index-aligned with the start times. */
+        private final long[] stops;
+        /** Whether or not any recurrence overlaps the next one. */
+        private final boolean overlapping;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param event The event the recurrences were expanded from.
+         * @param horizonStart The start of the time frame covered.
+         * @param horizonEnd The end of the time frame covered.
+         * @param starts The start times of the recurrences, ascending.
+         * @param stops The end times of the recurrences.
+         */
+        private Entry(EventEntry event, long horizonStart, long horizonEnd, long[] starts, long[] stops) {
+            this.rule = event.getRecurrenceRule();
+            this.startTime = event.getStartTime();
+            this.endTime = event.getEndTime();
+            this.hasEndTime = event.hasEndTime();
+            this.timeDisplay = event.getTimeDisplayMode();
+            this.horizonStart = horizonStart;
+            this.horizonEnd = horizonEnd;
+            this.starts = starts;
+            this.stops = stops;
+            boolean overlaps = false;
+            for (int i = 1; i < starts.length && !overlaps; i++) {
+                overlaps = stops[i - 1] >= starts[i];
+            }
+            this.overlapping = overlaps;
+        }
+
+        /**
+         * Determines if this entry was expanded from the same details as
+         * those of the given event.
+         *
+         * @param event The event.
+         * @return True if this entry was expanded from the same details as those of the given event, false if not.
+         */
+        private boolean isExpansionOf(EventEntry event) {
+            return startTime == event.getStartTime()
+                    && endTime == event.getEndTime()
+                    && hasEndTime == event.hasEndTime()
+                    && rule.equals(event.getRecurrenceRule())
+                    && (timeDisplay == null ? event.getTimeDisplayMode() == null : timeDisplay.equals(event.getTimeDisplayMode()))
+                    && EventEntry.DEFAULT_TIME_ZONE.equals(event.getTimeZone());
+        }
+
+        /**
+         * Determines if this entry covers the given time frame.
+         * <p>
+         * Entries with recurrences that overlap each other never cover any 
+         * time frame, as on-the-fly expansion yields only the last of the 
+         * recurrences that start before the time frame.
+         *
+         * @param start The time frame start.
+         * @param end The time frame end.
+         * @return True if this entry covers the given time frame, false if not.
+         */
+        private boolean covers(long start, long end) {
+            return !overlapping && start >= horizonStart && end <= horizonEnd && start <= end;
+        }
+
+        /**
+         * Gets the index of the first recurrence that does not end (or, if
+         * there is no end time, start) before the given time.
+         *
+         * @param time The time.
+         * @return The index of the first recurrence that does not end before the given time.
+         */
+        private int indexOf(long time) {
+            // End times are start times offset by a fixed duration, so both are ascending
+            long[] reach = hasEndTime ? stops : starts;
+            int i = Arrays.binarySearch(reach, time);
+            if (i < 0) {
+                return -i - 1;
+            }
+            while (i > 0 && reach[i - 1] == time) {
+                i--;
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Gets the recurrences of the given event within the given time frame,
+     * from the store if possible.
+     *
+     * @param event The event.
+     * @param start The time frame start.
+     * @param end The time frame end.
+     * @return The recurrences of the given event within the given time frame, or an empty list if none.
+     * @see EventEntry#getRecurrences(long, long)
+     */
+    public static List<EventEntry> getRecurrences(EventEntry event, long start, long end) {
+        List<EventEntry> recurrences = new ArrayList<EventEntry>();
+        Iterator<EventEntry> iRecurrences = iterateRecurrences(event, start, end);
+        while (iRecurrences.hasNext()) {
+            recurrences.add(iRecurrences.next());
+        }
+        return recurrences;
+    }
+
+    /**
+     * Gets a lazy iterator over the recurrences of the given event within
+     * the given time frame, from the store if possible.
+     *
+     * @param event The event.
+     * @param start The time frame start.
+     * @param end The time frame end.
+     * @return A lazy iterator over the recurrences of the given event within the given time frame.
+     * @see EventEntry#iterateRecurrences(long, long)
+     */
+    public static Iterator<EventEntry> iterateRecurrences(final EventEntry event, final long start, final long end) {
+        final Entry entry = event.getStructureId() == null ? null : ENTRIES.get(event.getStructureId());
+        if (entry == null || !entry.covers(start, end) || !entry.isExpansionOf(event)) {
+            return event.iterateRecurrences(start, end);
+        }
+        return new Iterator<EventEntry>() {
+            /** The index of the next stored recurrence to evaluate. */
+            private int i = entry.indexOf(start);
+            /** The next recurrence to return, if already found. */
+            private EventEntry next = null;
+
+            public boolean hasNext() {
+                while (next == null && i < entry.starts.length && entry.starts[i] <= end) {
+                    EventEntry recurrence = new EventOccurrence(event, entry.starts[i], entry.stops[i]);
+                    i++;
+                    if (recurrence.overlapsRange(start, end)) {
+                        next = recurrence;
+                    }
+                }
+                return next != null;
+            }
+
+            public EventEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                EventEntry e = next;
+                next = null;
+                return e;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("Removing recurrences is not supported.");
+            }
+        };
+    }
+
+    /**
+     * Moves the horizon to the given number of days around the current time,
+     * and updates the stored recurrences of all recurring events in the
+     * {@link EventIndex} accordingly.
+     *
+     * @param daysPast The number of days the horizon should reach into the past.
+     * @param daysFuture The number of days the horizon should reach into the future.
+     * @return A short summary of the update, for logging.
+     */
+    public static String refresh(int daysPast, int daysFuture) {
+        EventIndex index = EventIndex.getInstance();
+        if (index == null) {
+            return "Event index not available, recurrence horizon not updated.";
+        }
+        long refreshStart = System.currentTimeMillis();
+        long today = EventCalendarUtils.getStartOfDay(refreshStart);
+        long horizonStart = today - daysPast * DAY;
+        long horizonEnd = today + (daysFuture + 1) * DAY - 1;
+
+        int expanded = 0;
+        int rolled = 0;
+        Set<CmsUUID> recurring = new HashSet<CmsUUID>();
+        for (EventRecord record : index.getRecords()) {
+            if (!record.hasRecurrenceRule()) {
+                continue;
+            }
+            EventEntry event = record.toEventEntry((Locale)null);
+            Entry entry = ENTRIES.get(record.getStructureId());
+            try {
+                if (entry != null && entry.isExpansionOf(event) && entry.horizonStart <= horizonStart) {
+                    entry = roll(entry, event, horizonStart, horizonEnd);
+                    rolled++;
+                } else {
+                    entry = expand(event, horizonStart, horizonEnd);
+                    expanded++;
+                }
+                ENTRIES.put(record.getStructureId(), entry);
+                recurring.add(record.getStructureId());
+            } catch (Exception e) {
+                if (LOG.isWarnEnabled()) {
+                    LOG.warn("Unable to expand recurrences of event '" + record.getRootPath() + "'.", e);
+                }
+            }
+        }
+        ENTRIES.keySet().retainAll(recurring);
+
+        String summary = "Recurrence horizon updated for " + recurring.size() + " events ("
+                + expanded + " expanded, " + rolled + " rolled) in "
+                + (System.currentTimeMillis() - refreshStart) + " ms.";
+        if (LOG.isInfoEnabled()) {
+            LOG.info(summary);
+        }
+        return summary;
+    }
+
+    /**
+     * Expands the recurrences of the given event within the given horizon.
+     *
+     * @param event The event.
+     * @param horizonStart The horizon start.
+     * @param horizonEnd The horizon end.
+     * @return A new entry holding the recurrences of the given event within the given horizon.
+     */
+    private static Entry expand(EventEntry event, long horizonStart, long horizonEnd) {
+        long[][] times = collect(event.iterateRecurrences(horizonStart, horizonEnd), new long[0], new long[0], 0, Long.MIN_VALUE);
+        return new Entry(event, horizonStart, horizonEnd, times[0], times[1]);
+    }
+
+    /**
+     * Moves the given entry to the given (later) horizon, by dropping
+     * recurrences that fall before the horizon start, and expanding only the
+     * time frame beyond the entry's current horizon end.
+     *
+     * @param entry The entry to move.
+     * @param event The event the entry was expanded from.
+     * @param horizonStart The new horizon start, no earlier than the entry's current horizon start.
+     * @param horizonEnd The new horizon end.
+     * @return A new entry holding the recurrences of the given event within the given horizon.
+     */
+    private static Entry roll(Entry entry, EventEntry event, long horizonStart, long horizonEnd) {
+        int from = entry.indexOf(horizonStart);
+        int to = from;
+        while (to < entry.starts.length && entry.starts[to] <= horizonEnd) {
+            to++;
+        }
+        long[] starts = Arrays.copyOfRange(entry.starts, from, to);
+        long[] stops = Arrays.copyOfRange(entry.stops, from, to);
+        if (horizonEnd > entry.horizonEnd) {
+            long lastStart = starts.length == 0 ? Long.MIN_VALUE : starts[starts.length - 1];
+            long[][] times = collect(event.iterateRecurrences(entry.horizonEnd, horizonEnd), starts, stops, starts.length, lastStart);
+            starts = times[0];
+            stops = times[1];
+        }
+        return new Entry(event, horizonStart, horizonEnd, starts, stops);
+    }
+
+    /**
+     * Appends the start and end times of the given recurrences to the given
+     * arrays, skipping any recurrences that do not start after the given
+     * time (these are already held).
+     *
+     * @param iRecurrences The recurrences, ascending.
+     * @param starts The start times held so far.
+     * @param stops The end times held so far.
+     * @param size The number of times held so far.
+     * @param after Only recurrences starting after this time are appended.
+     * @return The start times and end times, in two arrays trimmed to size.
+     */
+    private static long[][] collect(Iterator<EventEntry> iRecurrences, long[] starts, long[] stops, int size, long after) {
+        while (iRecurrences.hasNext()) {
+            EventEntry recurrence = iRecurrences.next();
+            if (recurrence.getStartTime() <= after) {
+                continue;
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, Math.max(16, size * 2));
+                stops = Arrays.copyOf(stops, starts.length);
+            }
+            starts[size] = recurrence.getStartTime();
+            stops[size] = recurrence.hasEndTime() ? recurrence.getEndTime() : 0;
+            size++;
+        }
+        return new long[][] { Arrays.copyOf(starts, size), Arrays.copyOf(stops, size) };
+    }
+
+    /**
+     * Gets the number of events with stored recurrences.
+     *
+     * @return The number of events with stored recurrences.
+     */
+    public static int size() {
+        return ENTRIES.size();
+    }
+
+    /**
+     * Clears the store. Recurrences are then expanded on the fly, until the
+     * next refresh.
+     */
+    public static void clear() {
+        ENTRIES.clear();
+    }
+}
@@ -0,0 +1,52 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.Map;
+import org.opencms.file.CmsObject;
+import org.opencms.scheduler.I_CmsScheduledJob;
+
+/**
+ * Scheduled job that moves the {@link RecurrenceHorizon} along with the
+ * current time, and updates the stored recurrences.
+ * <p>
+ * The job should typically run once a day, e.g. shortly after midnight. It 
+ * accepts the following (optional) parameters:
+ * <ul>
+ * <li><code>daysPast</code>: The number of days the horizon should reach into the past (default: {@link RecurrenceHorizon#DEFAULT_DAYS_PAST}).</li>
+ * <li><code>daysFuture</code>: The number of days the horizon should reach into the future (default: {@link RecurrenceHorizon#DEFAULT_DAYS_FUTURE}).</li>
+ * </ul>
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class RecurrenceHorizonJob implements I_CmsScheduledJob {
+
+    /** The name of the parameter holding the number of days the horizon should reach into the past. */
+    public static final String PARAM_DAYS_PAST = "daysPast";
+    /** The name of the parameter holding the number of days the horizon should reach into the future. */
+    public static final String PARAM_DAYS_FUTURE = "daysFuture";
+
+    /**
+     * @see org.opencms.scheduler.I_CmsScheduledJob#launch(org.opencms.file.CmsObject, java.util.Map)
+     */
+    public String launch(CmsObject cms, Map<String, String> parameters) throws Exception {
+        int daysPast = getIntParameter(parameters, PARAM_DAYS_PAST, RecurrenceHorizon.DEFAULT_DAYS_PAST);
+        int daysFuture = getIntParameter(parameters, PARAM_DAYS_FUTURE, RecurrenceHorizon.DEFAULT_DAYS_FUTURE);
+        return RecurrenceHorizon.refresh(daysPast, daysFuture);
+    }
+
+    /**
+     * Gets the (non-negative) integer value of the given parameter.
+     *
+     * @param parameters The job parameters.
+     * @param name The parameter name.
+     * @param defaultValue The value to use if the parameter is missing or invalid.
+     * @return The integer value of the given parameter, or the given default value if the parameter is missing or invalid.
+     */
+    private int getIntParameter(Map<String, String> parameters, String name, int defaultValue) {
+        try {
+            int value = Integer.parseInt(parameters.get(name).trim());
+            return value >= 0 ? value : defaultValue;
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+}
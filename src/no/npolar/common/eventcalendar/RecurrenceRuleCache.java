@@ -0,0 +1,93 @@
+package no.npolar.common.eventcalendar;
+
+import com.google.ical.iter.RecurrenceIterable;
+import com.google.ical.iter.RecurrenceIterator;
+import com.google.ical.iter.RecurrenceIteratorFactory;
+import com.google.ical.values.DateValue;
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * A shared, bounded cache of compiled recurrence rules.
+ * <p>
+ * Parsing a recurrence rule (RRULE) is by far the most costly part of
+ * creating a recurrence iterator, and the same rule is typically needed
+ * several times per event and request. This cache holds the compiled form
+ * of each rule, keyed by rule text, initial start date and time zone, so
+ * that fresh iterators can be created cheaply, using
+ * {@link #createRecurrenceIterator(java.lang.String, com.google.ical.values.DateValue, java.util.TimeZone)}.
+ * <p>
+ * Rules are parsed strictly, just like
+ * {@link RecurrenceIteratorFactory#createRecurrenceIterator(java.lang.String, com.google.ical.values.DateValue, java.util.TimeZone)}
+ * does, so malformed rules are rejected with a {@link ParseException}, and
+ * the returned iterators produce the same dates as those created by that
+ * method.
+ * <p>
+ * The least recently used rules are evicted once the cache holds
+ * {@link #MAX_SIZE} rules. Compiled rules are never modified, so they can
+ * safely be shared across threads.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class RecurrenceRuleCache {
+
+    /** The maximum number of cached rules. */
+    public static final int MAX_SIZE = 2000;
+    /** The key separator. */
+    private static final char SEPARATOR = '\n';
+
+    /** The compiled rules, in access order. */
+    private static final Map<String, RecurrenceIterable> RULES = new LinkedHashMap<String, RecurrenceIterable>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RecurrenceIterable> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    /**
+     * Creates a fresh iterator over the dates defined by the given
+     * recurrence rule, using the cached compiled rule if possible.
+     *
+     * @param rule The recurrence rule, including the "RRULE:" prefix.
+     * @param dtStart The initial start date.
+     * @param tz The time zone.
+     * @return A fresh iterator over the dates defined by the given recurrence rule.
+     * @throws ParseException If the recurrence rule is invalid.
+     */
+    public static RecurrenceIterator createRecurrenceIterator(String rule, DateValue dtStart, TimeZone tz) throws ParseException {
+        String key = rule + SEPARATOR + dtStart + SEPARATOR + (tz == null ? null : tz.getID());
+        RecurrenceIterable compiled;
+        synchronized (RULES) {
+            compiled = RULES.get(key);
+        }
+        if (compiled == null) {
+            compiled = RecurrenceIteratorFactory.createRecurrenceIterable(rule, dtStart, tz, true); // Strict, as createRecurrenceIterator
+            synchronized (RULES) {
+                RULES.put(key, compiled);
+            }
+        }
+        return compiled.iterator();
+    }
+
+    /**
+     * Gets the number of cached rules.
+     *
+     * @return The number of cached rules.
+     */
+    public static int size() {
+        synchronized (RULES) {
+            return RULES.size();
+        }
+    }
+
+    /**
+     * Clears the cache.
+     */
+    public static void clear() {
+        synchronized (RULES) {
+            RULES.clear();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package no.npolar.common.eventcalendar;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 import org.opencms.file.CmsObject;
@@ -8,7 +9,6 @@ import org.opencms.file.CmsProperty;
 import org.opencms.file.CmsResource;
 import org.opencms.main.CmsException;
 //import org.opencms.main.OpenCms;
-import org.opencms.util.CmsStringUtil;
 
 /**
  * Facilitates easy category filtering of collections.
@@ -48,42 +48,26 @@ public class ResourceCategoriesFilter {
             CmsResource res = null;
             CmsProperty prop = null;
             
+            // Parse all assigned categories before creating the filter
+            List<BitSet> assigned = new ArrayList<BitSet>(resources.size());
             Iterator<CmsResource> itr = resources.iterator();
             while (itr.hasNext()) { // Loop over all collected resources
                 res = itr.next();
                 prop = cmso.readPropertyObject(res, categoriesPropertyName, true); // Read the value of the category property (which should contain each assigned category's root path)
-                if (prop.isNullProperty()) { // If the resource hasn't been assigned any category ...
+                assigned.add(prop.isNullProperty() ? null : CategoryDictionary.getCategories(prop.getValue()));
+            }
+            
+            CategoryDictionary.Filter filter = CategoryDictionary.getFilter(filterMatchCategories);
+            Iterator<BitSet> iAssigned = assigned.iterator();
+            itr = resources.iterator();
+            while (itr.hasNext()) {
+                itr.next();
+                BitSet categories = iAssigned.next();
+                if (categories == null) { // If the resource hasn't been assigned any category ...
                     itr.remove(); // ... then remove it
-                } else { // The resource has been assigned at least one category, so we must match agains the filter(s) ...
-                    List assignedCategories = CmsStringUtil.splitAsList(prop.getValue(), '|');
-
-                    if (filterMode == MODE_INCLUSIVE) {
-                        // Inclusive filter: 
-                        // =================
-                        // Any resource assigned at least one of the filter categories is considered a match.
-                        // (The number of matching resources will remain stable or increase with each added category filter.)
-                        boolean filterMatch = false;
-                        Iterator<String> iFilterCategories = filterMatchCategories.iterator();
-                        while (iFilterCategories.hasNext()) {
-                            String filterCategory = iFilterCategories.next();
-                            if (assignedCategories.contains(filterCategory)) {
-                                filterMatch = true;
-                                break;
-                            }
-                        }
-                        if (!filterMatch) {
-                            itr.remove();
-                        }
-                    }
-                    else {
-                        // Exclusive filter: (This is the typical case, and hence the default mode)
-                        // =================
-                        // A resource must be assigned ALL filter categories to be considered a match.
-                        // (The number of matching resources will remain stable or decrease with each added category filter.)
-                        if (!assignedCategories.containsAll(filterMatchCategories)) {
-                            itr.remove();
-                        }
-                    }
+                } else if (!CategoryDictionary.matches(categories, filter, filterMode)) {
+                    // The resource has been assigned at least one category, but does not match the filter(s)
+                    itr.remove();
                 }
             }
         }
@@ -112,52 +96,55 @@ public class ResourceCategoriesFilter {
         
         if (filterMatchCategories != null && !filterMatchCategories.isEmpty()) { // If no filter categories were given, don't do anything
             
+            for (EventEntry event : events) {
+                event.getCategorySet(); // Parse all assigned categories before creating the filter
+            }
+            CategoryDictionary.Filter filter = CategoryDictionary.getFilter(filterMatchCategories);
             Iterator<EventEntry> itr = events.iterator();
             while (itr.hasNext()) { // Loop over all collected resources
-                EventEntry event = itr.next();
-                
-                if (!event.hasCategories()) {
+                if (!CategoryDictionary.matches(itr.next().getCategorySet(), filter, filterMode)) {
                     itr.remove();
-                } else { // The resource has been assigned at least one category, so we must match agains the filter(s) ...
-                    
-                    // OpenCms changed the separator for propertyList somewhere around version 9.0
-                    String propertyListSeparatorRegex = ",";
-                    if (event.getCategoriesString().contains("|")) {
-                        propertyListSeparatorRegex = "\\|";
-                    }
-                    
-                    List assignedCategories = Arrays.asList(event.getCategoriesString().split(propertyListSeparatorRegex));
-
-                    if (filterMode == MODE_INCLUSIVE) {
-                        // Inclusive filter: 
-                        // =================
-                        // Any resource assigned at least one of the filter categories is considered a match.
-                        // (The number of matching resources will remain stable or increase with each added category filter.)
-                        boolean filterMatch = false;
-                        Iterator<String> iFilterCategories = filterMatchCategories.iterator();
-                        while (iFilterCategories.hasNext()) {
-                            String filterCategory = iFilterCategories.next();
-                            if (assignedCategories.contains(filterCategory)) {
-                                filterMatch = true;
-                                break;
-                            }
-                        }
-                        if (!filterMatch) {
-                            itr.remove();
-                        }
-                    }
-                    else {
-                        // Exclusive filter: (This is the typical case, and hence the default mode)
-                        // =================
-                        // A resource must be assigned ALL filter categories to be considered a match.
-                        // (The number of matching resources will remain stable or decrease with each added category filter.)
-                        if (!assignedCategories.containsAll(filterMatchCategories)) {
-                            itr.remove();
-                        }
-                    }
                 }
             }
         }
         return events;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Determines if the given event matches the given filter categories.
+     * <p>
+     * The filter mode is used as described in 
+     * {@link #filter(java.util.List, java.util.List, int)}. If no filter 
+     * categories are given, any event is considered a match.
+     * 
+     * @param event The event to evaluate.
+     * @param filterMatchCategories The root paths to the categories to match against (the filters).
+     * @param filterMode The filter mode, one of {@link #MODE_EXCLUSIVE} or {@link #MODE_INCLUSIVE}.
+     * @return True if the given event matches the filter categories, false if not.
+     * @see #filter(java.util.List, java.util.List, int) 
+     */
+    public static boolean matches(EventEntry event, List<String> filterMatchCategories, int filterMode) {
+        BitSet assigned = event.getCategorySet(); // Parse before creating the filter
+        return CategoryDictionary.matches(assigned, CategoryDictionary.getFilter(filterMatchCategories), filterMode);
+    }
+    
+    /**
+     * Determines if the given categories string (as read from the property
+     * {@link EventEntry#PROPERTY_CATEGORIES}) matches the given filter 
+     * categories.
+     * <p>
+     * The categories string is parsed once, into a shared bit set, see 
+     * {@link CategoryDictionary}. When evaluating many events against the 
+     * same filter, prefer {@link CategoryDictionary#matches(java.util.BitSet, CategoryDictionary.Filter, int)},
+     * which avoids re-creating the filter bit set.
+     * 
+     * @param categoriesString The categories string, possibly empty or null.
+     * @param filterMatchCategories The root paths to the categories to match against (the filters).
+     * @param filterMode The filter mode, one of {@link #MODE_EXCLUSIVE} or {@link #MODE_INCLUSIVE}.
+     * @return True if the given categories string matches the filter categories, false if not.
+     */
+    public static boolean matches(String categoriesString, List<String> filterMatchCategories, int filterMode) {
+        BitSet assigned = CategoryDictionary.getCategories(categoriesString); // Parse before creating the filter
+        return CategoryDictionary.matches(assigned, CategoryDictionary.getFilter(filterMatchCategories), filterMode);
+    }
+}
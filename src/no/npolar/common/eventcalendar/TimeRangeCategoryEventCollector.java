@@ -2,7 +2,7 @@ package no.npolar.common.eventcalendar;
 
 import org.opencms.file.CmsDataAccessException;
 import org.opencms.file.CmsObject;
-//import org.opencms.file.CmsProperty;
+import org.opencms.file.CmsProperty;
 import org.opencms.file.CmsResource;
 import org.opencms.file.CmsResourceFilter;
 //import org.opencms.file.types.I_CmsResourceType;
@@ -12,18 +12,32 @@ import org.opencms.main.CmsException;
 //import org.opencms.main.CmsRuntimeException;
 import org.opencms.main.OpenCms;
 //import org.opencms.util.CmsStringUtil;
+import org.opencms.util.CmsUUID;
 
 //import java.text.DateFormat;
 //import java.text.ParseException;
 //import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-//import java.util.Arrays;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 //import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 //import javax.servlet.http.HttpSession;
 import org.opencms.file.collectors.*;
 import org.opencms.main.CmsLog;
@@ -55,6 +69,19 @@ public class TimeRangeCategoryEventCollector extends CmsTimeRangeCategoryCollect
      * Holds the paths to all categories found on the events in the last result, before limiting.
      */
     private Map<String, Integer> resultCategories = new HashMap<String, Integer>();
+    /**
+     * Holds the cursor to collect events after, if any.
+     */
+    private EventCursor cursor = null;
+    
+    /** The minimum number of event records required to use parallel processing. */
+    public static final int PARALLEL_THRESHOLD = 200;
+    /** The number of threads used for parallel processing. */
+    private static final int PARALLEL_THREADS = Runtime.getRuntime().availableProcessors();
+    /** The maximum time to wait for parallel processing, in milliseconds, before falling back to sequential processing. (A safety bound, not a measured value.) */
+    public static final long PARALLEL_TIMEOUT = 5000;
+    /** The executor used for parallel processing, shared by all instances. */
+    private static ExecutorService parallelExecutor = null;
     
     /**
      * Creates a new instance of this collector.
@@ -84,7 +111,7 @@ public class TimeRangeCategoryEventCollector extends CmsTimeRangeCategoryCollect
      * 
      * @param cmso An initialized CmsObject holding context, locale etc.
      * @param collectorName The name of the collector to use. Passing null will cause a fallback to the default, {@link #COLLECTOR_NAME}.
-     * @param param The parameters string. For more info, see {@link EventsCollector#getCollectorParameterString(java.lang.String, java.lang.String, java.lang.String, java.util.List, boolean, boolean, boolean, boolean, int)}.
+     * @param param The parameters string. For more info, see {@link EventQuery#valueOf(java.lang.String)}.
      * @throws CmsDataAccessException, CmsException
      * @return Any resource that meet the criteria defined in the collector settings.
      * @see CmsTimeRangeCategoryCollector#getResults(org.opencms.file.CmsObject, java.lang.String, java.lang.String)
@@ -109,6 +136,21 @@ public class TimeRangeCategoryEventCollector extends CmsTimeRangeCategoryCollect
         }
     }
     
+    /**
+     * Gets any EvenEntry resources that meet the criteria defined in the 
+     * given query.
+     * 
+     * @param cmso An initialized CmsObject holding context, locale etc.
+     * @param query The query.
+     * @throws CmsDataAccessException, CmsException
+     * @return Any resource that meet the criteria defined in the given query.
+     * @see #getResults(org.opencms.file.CmsObject, java.lang.String, java.lang.String) 
+     */
+    public List<CmsResource> getResults(CmsObject cmso, EventQuery query) throws CmsDataAccessException, CmsException {
+        this.data = new CollectorDataPropertyBased(query);
+        return collectResourcesByTimeRangeAndCategories(cmso);
+    }
+    
     /**
      * Gets any EventEntry instances that meet the criteria defined in the 
      * collector's parameters.
@@ -118,15 +160,171 @@ public class TimeRangeCategoryEventCollector extends CmsTimeRangeCategoryCollect
      * which does all the heavy lifting.
      * 
      * @param cms An initialized CMS action element, holding context, locale etc.
-     * @param param The parameters string. For more info, see {@link EventsCollector#getCollectorParameterString(java.lang.String, java.lang.String, java.lang.String, java.util.List, boolean, boolean, boolean, boolean, int)}.
+     * @param param The parameters string. For more info, see {@link EventQuery#valueOf(java.lang.String)}.
      * @throws CmsDataAccessException, CmsException
      * @return A list of EventEntry instances that meet the criteria defined in the collector settings.
      * @see CmsTimeRangeCategoryCollector#getResults(org.opencms.file.CmsObject, java.lang.String, java.lang.String)
      */
     public List<EventEntry> getEvents(CmsJspActionElement cms, String param) throws CmsDataAccessException, CmsException {
-        // Parse parameters
-        this.data = new CollectorDataPropertyBased(param);
-        return collectEventsByTimeRangeAndCategories(cms);
+        return getEvents(cms, EventQuery.valueOf(param), null);
+    }
+    
+    /**
+     * Gets any EventEntry instances that meet the criteria defined in the 
+     * given query.
+     * <p>
+     * This is the same as {@link #getEvents(org.opencms.jsp.CmsJspActionElement, java.lang.String)}, 
+     * but without the need to create and parse a parameter string.
+     * 
+     * @param cms An initialized CMS action element, holding context, locale etc.
+     * @param query The query.
+     * @throws CmsDataAccessException, CmsException
+     * @return A list of EventEntry instances that meet the criteria defined in the given query.
+     */
+    public List<EventEntry> getEvents(CmsJspActionElement cms, EventQuery query) throws CmsDataAccessException, CmsException {
+        return getEvents(cms, query, null);
+    }
+    
+    /**
+     * Gets any EventEntry instances that meet the criteria defined in the 
+     * collector's parameters, and that follow the given cursor position.
+     * <p>
+     * This is the keyset pagination variant of 
+     * {@link #getEvents(org.opencms.jsp.CmsJspActionElement, java.lang.String)}: 
+     * The result limit defines the page size, and passing a cursor positioned 
+     * at the last event of the previous page returns the next page. Events 
+     * preceding the cursor are skipped as early as possible, and are never 
+     * sorted.
+     * <p>
+     * When a cursor is given, {@link #getTotalResults()} and 
+     * {@link #getResultCategories()} cover only the events that follow the 
+     * cursor position.
+     * <p>
+     * Results for the guest user in the online project are served from the
+     * {@link EventResultCache} whenever possible.
+     *
+     * @param cms An initialized CMS action element, holding context, locale etc.
+     * @param param The parameters string. For more info, see {@link EventQuery#valueOf(java.lang.String)}.
+     * @param cursor The cursor to collect events after, or <code>null</code> to start at the beginning.
+     * @throws CmsDataAccessException, CmsException
+     * @return A list of EventEntry instances that meet the criteria defined in the collector settings, and follow the given cursor position.
+     * @see EventCursor
+     */
+    public List<EventEntry> getEvents(CmsJspActionElement cms, String param, EventCursor cursor) throws CmsDataAccessException, CmsException {
+        return getEvents(cms, EventQuery.valueOf(param), cursor);
+    }
+    
+    /**
+     * Gets any EventEntry instances that meet the criteria defined in the 
+     * given query, and that follow the given cursor position.
+     * 
+     * @param cms An initialized CMS action element, holding context, locale etc.
+     * @param query The query.
+     * @param cursor The cursor to collect events after, or <code>null</code> to start at the beginning.
+     * @throws CmsDataAccessException, CmsException
+     * @return A list of EventEntry instances that meet the criteria defined in the given query, and follow the given cursor position.
+     * @see #getEvents(org.opencms.jsp.CmsJspActionElement, java.lang.String, no.npolar.common.eventcalendar.EventCursor) 
+     */
+    public List<EventEntry> getEvents(CmsJspActionElement cms, EventQuery query, EventCursor cursor) throws CmsDataAccessException, CmsException {
+        this.cursor = cursor;
+
+        CmsObject cmso = cms.getCmsObject();
+        if (!EventResultCache.isCacheable(cmso)) {
+            this.data = new CollectorDataPropertyBased(query);
+            return collectEventsByTimeRangeAndCategories(cms);
+        }
+
+        // Serve from the shared result cache, if possible (collecting with 
+        // the canonical query, so that the result depends only on the key)
+        EventQuery canonicalQuery = EventResultCache.getCanonicalQuery(query);
+        this.data = new CollectorDataPropertyBased(canonicalQuery);
+        Object cacheKey = EventResultCache.getKey(cmso, canonicalQuery, cursor);
+        EventResultCache.Entry cached = EventResultCache.get(cacheKey);
+        if (cached != null) {
+            this.resultsTotal = cached.getTotalResults();
+            this.resultCategories = new HashMap<String, Integer>(cached.getResultCategories());
+            return cached.getEvents();
+        }
+        long cacheGeneration = EventResultCache.getGeneration();
+        List<EventEntry> events = collectEventsByTimeRangeAndCategories(cms);
+        EventResultCache.put(cacheKey, cacheGeneration, events, resultsTotal, resultCategories);
+        return events;
+    }
+    
+    /**
+     * Gets a lazy iterator over any EventEntry instances that meet the 
+     * criteria defined in the collector's parameters.
+     * <p>
+     * This is the lazy variant of 
+     * {@link #getEvents(org.opencms.jsp.CmsJspActionElement, java.lang.String)}, 
+     * and returns the same events, in the same order. The difference is that 
+     * all stages (expiration and range checks, duplicate removal, category 
+     * filtering and sorting) are done one event at a time, as the iterator 
+     * is advanced. Consumers that stop early - e.g. after finding the first 
+     * matching event, or when a page is full - only pay for the events they 
+     * actually read.
+     * <p>
+     * Because not all events are evaluated, {@link #getTotalResults()} and 
+     * {@link #getResultCategories()} are not updated.
+     * <p>
+     * This collector should not be re-used while the iterator is in use.
+     * 
+     * @param cms An initialized CMS action element, holding context, locale etc.
+     * @param param The parameters string. For more info, see {@link EventQuery#valueOf(java.lang.String)}.
+     * @throws CmsDataAccessException, CmsException
+     * @return A lazy iterator over the EventEntry instances that meet the criteria defined in the collector settings.
+     */
+    public Iterator<EventEntry> iterateEvents(CmsJspActionElement cms, String param) throws CmsDataAccessException, CmsException {
+        return iterateEvents(cms, EventQuery.valueOf(param), null);
+    }
+    
+    /**
+     * Gets a lazy iterator over any EventEntry instances that meet the 
+     * criteria defined in the given query.
+     * 
+     * @param cms An initialized CMS action element, holding context, locale etc.
+     * @param query The query.
+     * @throws CmsDataAccessException, CmsException
+     * @return A lazy iterator over the EventEntry instances that meet the criteria defined in the given query.
+     * @see #iterateEvents(org.opencms.jsp.CmsJspActionElement, java.lang.String) 
+     */
+    public Iterator<EventEntry> iterateEvents(CmsJspActionElement cms, EventQuery query) throws CmsDataAccessException, CmsException {
+        return iterateEvents(cms, query, null);
+    }
+    
+    /**
+     * Gets a lazy iterator over any EventEntry instances that meet the 
+     * criteria defined in the collector's parameters, and that follow the 
+     * given cursor position.
+     * 
+     * @param cms An initialized CMS action element, holding context, locale etc.
+     * @param param The parameters string. For more info, see {@link EventQuery#valueOf(java.lang.String)}.
+     * @param cursor The cursor to collect events after, or <code>null</code> to start at the beginning.
+     * @throws CmsDataAccessException, CmsException
+     * @return A lazy iterator over the EventEntry instances that meet the criteria defined in the collector settings, and follow the given cursor position.
+     * @see #iterateEvents(org.opencms.jsp.CmsJspActionElement, java.lang.String) 
+     * @see #getEvents(org.opencms.jsp.CmsJspActionElement, java.lang.String, no.npolar.common.eventcalendar.EventCursor) 
+     */
+    public Iterator<EventEntry> iterateEvents(CmsJspActionElement cms, String param, EventCursor cursor) throws CmsDataAccessException, CmsException {
+        return iterateEvents(cms, EventQuery.valueOf(param), cursor);
+    }
+    
+    /**
+     * Gets a lazy iterator over any EventEntry instances that meet the 
+     * criteria defined in the given query, and that follow the given cursor 
+     * position.
+     * 
+     * @param cms An initialized CMS action element, holding context, locale etc.
+     * @param query The query.
+     * @param cursor The cursor to collect events after, or <code>null</code> to start at the beginning.
+     * @throws CmsDataAccessException, CmsException
+     * @return A lazy iterator over the EventEntry instances that meet the criteria defined in the given query, and follow the given cursor position.
+     * @see #iterateEvents(org.opencms.jsp.CmsJspActionElement, java.lang.String, no.npolar.common.eventcalendar.EventCursor) 
+     */
+    public Iterator<EventEntry> iterateEvents(CmsJspActionElement cms, EventQuery query, EventCursor cursor) throws CmsDataAccessException, CmsException {
+        this.data = new CollectorDataPropertyBased(query);
+        this.cursor = cursor;
+        return new EventIterator(cms);
     }
     
     /*private List<EventEntry> getRecurrences(CmsObject cmso, EventEntry event, long start, long end) {
@@ -207,9 +405,16 @@ public class TimeRangeCategoryEventCollector extends CmsTimeRangeCategoryCollect
 
         // Step 1: Read from DB, expiration is respected.
         String foldername = CmsResource.getFolderPath(data.getFileName());
-        CmsResourceFilter filter = CmsResourceFilter.DEFAULT.addRequireType(OpenCms.getResourceManager().getResourceType("np_event").getTypeId()).addExcludeFlags(CmsResource.FLAG_TEMPFILE);
+        int eventTypeId = OpenCms.getResourceManager().getResourceType(EventEntry.RESOURCE_TYPE_NAME_EVENT).getTypeId();
+        CmsResourceFilter filter = CmsResourceFilter.DEFAULT.addRequireType(eventTypeId).addExcludeFlags(CmsResource.FLAG_TEMPFILE);
         
-        List<CmsResource> result = cms.readResources(foldername, filter, true); // Fetch all folder resources, filtered by type and flags
+        // Fetch folder resources, filtered by type and flags (and possibly pre-filtered by time range)
+        List<CmsResource> result = readResourcesInTimeFrame(cms, 
+                                                            foldername, 
+                                                            filter, 
+                                                            eventTypeId, 
+                                                            EventEntry.PROPERTY_TIME_START, 
+                                                            EventEntry.PROPERTY_TIME_END);
         Iterator<CmsResource> itResults = result.iterator(); // Iterate over the previously fetched folder resources
         
         //LOG.error("Collected " + result.size() + " events initially.");
@@ -256,7 +461,8 @@ public class TimeRangeCategoryEventCollector extends CmsTimeRangeCategoryCollect
         //LOG.error("Now " + result.size() + " events remain.");
         //LOG.error("Filtering events by category ...");
         
-        // Step 3: Category filtering
+        // Step 3: Category filtering (resources are read here, not event 
+        // records, so unlike when collecting events, they are filtered here)
         ResourceCategoriesFilter.filter(cms, 
                               result, 
                               data.getCategories(), 
@@ -296,14 +502,36 @@ public class TimeRangeCategoryEventCollector extends CmsTimeRangeCategoryCollect
      * Sets the result categories based on the given list of event instances.
      * <p>
      * The list of events must contain CmsResource or EventEntry instances.
+     * <p>
+     * For EventEntry instances, the categories are counted by category id, 
+     * using each event's (shared) category bit set, and each category's path 
+     * is resolved only once.
      * 
      * @param cmso Initialized CmsObject, needed to access properties.
      * @param events The event objects, a CmsResource or EventEntry instances.
      */
     private void setCategories(CmsObject cmso, List<? extends Object> events) {
         resultCategories.clear();
+        int[] counts = new int[64];
         for (Object event : events) {
-            updateCategories(cmso, event);
+            if (event instanceof EventEntry) {
+                BitSet categories = ((EventEntry)event).getCategorySet();
+                for (int id = categories.nextSetBit(0); id >= 0; id = categories.nextSetBit(id + 1)) {
+                    if (id >= counts.length) {
+                        counts = Arrays.copyOf(counts, Math.max(id + 1, counts.length * 2));
+                    }
+                    counts[id]++;
+                }
+            } else {
+                updateCategories(cmso, event);
+            }
+        }
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] > 0) {
+                String catPath = CategoryDictionary.getPath(id);
+                Integer num = resultCategories.get(catPath);
+                resultCategories.put(catPath, num == null ? counts[id] : num + counts[id]);
+            }
         }
     }
     
@@ -360,153 +588,679 @@ public class TimeRangeCategoryEventCollector extends CmsTimeRangeCategoryCollect
      */
     private List<EventEntry> collectEventsByTimeRangeAndCategories(CmsJspActionElement cms) throws CmsException {
         CmsObject cmso = cms.getCmsObject();
+        
+        boolean ascending = isAscending();
+        
+        // The time frame to source events from: Any events that precede the 
+        // cursor (if any) can be skipped altogether
+        long sourceStart = getSourceStart();
+        long sourceEnd = getSourceEnd();
+        
+        // List to hold all matching events - we will fill this next
+        List<EventEntry> events = new ArrayList<EventEntry>();
+        
+        // Step 1: Read event records - from the event index if possible, 
+        // otherwise from DB. Expiration and categories are respected in both cases.
+        List<EventRecord> records = readRecords(cms, sourceStart, sourceEnd);
+        if (data.isParallel() && records.size() >= PARALLEL_THRESHOLD) {
+            addMatchingEventsParallel(cms, records, events, sourceStart, sourceEnd);
+        } else {
+            Iterator<EventRecord> iRecords = records.iterator();
+            while (iRecords.hasNext()) {
+                addMatchingEvents(iRecords.next().toEventEntry(cms), events, sourceStart, sourceEnd);
+            }
+        }
 
-        // Step 1: Read from DB, expiration is respected.
+        // Remove duplicates, in a single pass
+        Set<EventEntry> seen = new HashSet<EventEntry>(events.size() * 2);
+        List<EventEntry> unique = new ArrayList<EventEntry>(events.size());
+        for (EventEntry e : events) {
+            if (seen.add(e)) {
+                unique.add(e);
+            }
+        }
+        events = unique;
+        Iterator<EventEntry> iEvents;
+        
+        // Skip events that precede the cursor (if any)
+        if (cursor != null) {
+            iEvents = events.iterator();
+            while (iEvents.hasNext()) {
+                if (!cursor.precedes(iEvents.next(), ascending)) {
+                    iEvents.remove();
+                }
+            }
+        }
+        
+        // Step 2: Update categories in result, and result count
+        setCategories(cmso, events);
+        this.resultsTotal = events.size();
+        
+        // Step 3: Sorting and result limit (events with identical start times 
+        // are sorted by structure ID, so that cursor positions are unambiguous)
+        Comparator<EventEntry> comparator = EventCursor.getComparator(ascending);
+        if (data.getCount() >= 0 && data.getCount() < events.size()) {
+            // Only the first N events are needed => no need to sort them all
+            return selectFirst(events, comparator, data.getCount());
+        }
+        Collections.sort(events, comparator);
+        return events;
+    }
+    
+    /**
+     * Selects the first <i>N</i> events (<i>N</i> = maxSize) from the given 
+     * list, as if it had been sorted using the given comparator and then 
+     * limited to maxSize.
+     * <p>
+     * A bounded heap is used, so this is considerably cheaper than sorting the 
+     * entire list when maxSize is small. Like sorting, the selection is 
+     * stable: equal events retain their order from the given list.
+     * <p>
+     * The given list is not modified in any way.
+     * 
+     * @param events The events to select from.
+     * @param comparator The comparator that defines the order of events.
+     * @param maxSize The maximum number of events to select.
+     * @return A new list containing, at max, the <i>N</i> first events, sorted (<i>N</i> = maxSize).
+     */
+    protected List<EventEntry> selectFirst(final List<EventEntry> events, final Comparator<EventEntry> comparator, int maxSize) {
+        if (maxSize <= 0) {
+            return new ArrayList<EventEntry>(0);
+        }
+        // Heap of list indexes, with the "last" selected event at the head
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>(maxSize, 
+                new Comparator<Integer>() {
+                    public int compare(Integer i1, Integer i2) {
+                        int c = comparator.compare(events.get(i2), events.get(i1));
+                        return c != 0 ? c : i2.compareTo(i1);
+                    }
+                });
+        for (int i = 0; i < events.size(); i++) {
+            if (heap.size() < maxSize) {
+                heap.add(i);
+            } else if (comparator.compare(events.get(i), events.get(heap.peek())) < 0) {
+                // Strictly before the current last => replace it
+                heap.poll();
+                heap.add(i);
+            }
+        }
+        EventEntry[] selected = new EventEntry[heap.size()];
+        for (int i = selected.length - 1; i >= 0; i--) {
+            selected[i] = events.get(heap.poll());
+        }
+        return new ArrayList<EventEntry>(Arrays.asList(selected));
+    }
+    
+    /**
+     * Determines if events are to be sorted by ascending start time.
+     * <p>
+     * Note: The "sort descending" flag maps to ascending start times, and 
+     * vice versa.
+     * 
+     * @return True if events are to be sorted by ascending start time, false if not.
+     */
+    private boolean isAscending() {
+        return data.isSortDescending();
+    }
+    
+    /**
+     * Gets the start of the time frame to source events from. 
+     * <p>
+     * This is the collector's time frame start, possibly narrowed by the 
+     * cursor (if any).
+     * 
+     * @return The start of the time frame to source events from.
+     */
+    private long getSourceStart() {
+        return (cursor != null && isAscending()) ? 
+                Math.max(data.getTimeFrameStart(), cursor.getStartTime()) 
+                : data.getTimeFrameStart();
+    }
+    
+    /**
+     * Gets the end of the time frame to source events from. 
+     * <p>
+     * This is the collector's time frame end, possibly narrowed by the 
+     * cursor (if any).
+     * 
+     * @return The end of the time frame to source events from.
+     */
+    private long getSourceEnd() {
+        return (cursor != null && !isAscending()) ? 
+                Math.min(data.getTimeFrameEnd(), cursor.getStartTime()) 
+                : data.getTimeFrameEnd();
+    }
+    
+    /**
+     * Reads the records of all events in the collector's folder that may 
+     * occupy any part of the given time frame, and match the collector's 
+     * categories, except events in excluded folders.
+     * <p>
+     * Records are read from the {@link EventIndex} if possible, which does 
+     * all filtering in a single pass over its primitive columns. If not, 
+     * event resources are read from the VFS, and records are created for them 
+     * (re-using indexed records wherever possible).
+     * <p>
+     * As all occurrences of an event share the event's categories, category
+     * filtering is done here, once per record, rather than once per event.
+     * 
+     * @param cms An initialized CMS action element, holding context, locale, etc.
+     * @param sourceStart The time frame start.
+     * @param sourceEnd The time frame end.
+     * @return The records of all events that may occupy any part of the given time frame.
+     * @throws CmsException If reading from the VFS fails.
+     */
+    private List<EventRecord> readRecords(CmsJspActionElement cms, long sourceStart, long sourceEnd) throws CmsException {
+        CmsObject cmso = cms.getCmsObject();
         String foldername = CmsResource.getFolderPath(data.getFileName());
+        List<EventRecord> records = new ArrayList<EventRecord>();
+        PathPrefixSet excludedFolders = getExcludedFolders(cmso);
+        
+        List<String> categories = data.getCategories();
+        int categoryMode = data.isCategoryInclusive() ? ResourceCategoriesFilter.MODE_INCLUSIVE : ResourceCategoriesFilter.MODE_EXCLUSIVE;
+        
+        EventIndex index = EventIndex.getInstance(cmso);
+        if (index != null) {
+            return index.query(cmso.getRequestContext().addSiteRoot(foldername), 
+                                excludedFolders.isEmpty() ? null : excludedFolders, 
+                                categories, 
+                                categoryMode, 
+                                sourceStart, 
+                                sourceEnd, 
+                                cmso.getRequestContext().getRequestTime());
+        }
+        
         CmsResourceFilter filter = CmsResourceFilter.DEFAULT
                                     .addRequireType(OpenCms.getResourceManager().getResourceType(EventEntry.RESOURCE_TYPE_NAME_EVENT).getTypeId())
                                     .addExcludeFlags(CmsResource.FLAG_TEMPFILE);
-        
+
         List<CmsResource> result = cmso.readResources(foldername, filter, true); // Fetch all resources in the folder sub-tree, filter on type and flag(s)
-        Iterator<CmsResource> iResults = result.iterator(); // Iterator for these resources
-        
+
         //LOG.error("Collected " + result.size() + " events initially.");
-        
-        // List to hold all matching events - we will fill this next
-        List<EventEntry> events = new ArrayList<EventEntry>();
-        
+
+        // Skip events in excluded folder(s), and use indexed records 
+        // wherever possible. Properties for the rest are read in one pass.
+        List<CmsResource> candidates = new ArrayList<CmsResource>(result.size());
+        Map<CmsUUID, EventRecord> indexedRecords = new HashMap<CmsUUID, EventRecord>();
+        List<CmsResource> unindexed = new ArrayList<CmsResource>();
+        Iterator<CmsResource> iResults = result.iterator(); // Iterator for these resources
         while (iResults.hasNext()) {
             CmsResource res = iResults.next();
-            
+
             // If excluded folder(s) are set, check if the event is in one
-            if (!data.getExcludedFolders().isEmpty()) {
-                boolean excludeThis = false;
-                String eventUri = cmso.getSitePath(res);
-                Iterator<String> iExcludedFolders = data.getExcludedFolders().iterator();
-                while (iExcludedFolders.hasNext()) {
-                    if (eventUri.startsWith(iExcludedFolders.next())) {
-                        // Match => event is in excluded folder
-                        excludeThis = true; 
-                        break;
+            if (excludedFolders.matches(res.getRootPath())) {
+                continue; // Do not proceed, just skip to next event
+            }
+
+            candidates.add(res);
+            EventRecord record = EventIndex.getRecord(cmso, res);
+            if (record != null) {
+                indexedRecords.put(res.getStructureId(), record);
+            } else {
+                unindexed.add(res);
+            }
+        }
+        Map<CmsUUID, List<CmsProperty>> properties = EventPropertyLoader.load(cmso, unindexed);
+
+        Iterator<CmsResource> iCandidates = candidates.iterator();
+        while (iCandidates.hasNext()) {
+            CmsResource res = iCandidates.next();
+            EventRecord record = indexedRecords.get(res.getStructureId());
+            if (record == null && properties.containsKey(res.getStructureId())) {
+                try {
+                    record = new EventRecord(res, properties.get(res.getStructureId()));
+                } catch (Exception e) {
+                    if (LOG.isErrorEnabled()) {
+                        LOG.error("Error creating event '" + res.getRootPath() + "': missing or invalid required property.", e);
                     }
                 }
-                if (excludeThis) {
-                    continue; // Do not proceed, just skip to next event
+            }
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        // Create the filter only now that all records' categories are parsed
+        CategoryDictionary.Filter categoryFilter = CategoryDictionary.getFilter(categories);
+        if (categoryFilter != null) {
+            Iterator<EventRecord> iRecords = records.iterator();
+            while (iRecords.hasNext()) {
+                if (!CategoryDictionary.matches(iRecords.next().getCategorySet(), categoryFilter, categoryMode)) {
+                    iRecords.remove();
                 }
             }
+        }
+        return records;
+    }
+    
+    /**
+     * Lazy, pull-based iterator over collected events.
+     * <p>
+     * Event records are read up front (they are light-weight), and ordered by 
+     * their start time. Each record is then turned into events (including 
+     * recurrences) and evaluated only when needed: Because no occurrence of 
+     * an event starts before the event itself, an event pending in the queue 
+     * can safely be returned once it precedes the next record's start time.
+     * <p>
+     * The pending queue is a k-way merge: Each event's occurrences form an 
+     * already-sorted stream, and only the head of each stream is held in the 
+     * queue. When sorting by ascending start time, recurrences are produced 
+     * lazily (see {@link EventEntry#iterateRecurrences(long, long)}), so 
+     * recurring events are expanded no further than needed to reach the 
+     * result limit.
+     * <p>
+     * Recurring events are the exception when sorting by descending start 
+     * time, as their recurrences may start at any point after the record's 
+     * start time. These are expanded up front.
+     */
+    private class EventIterator implements Iterator<EventEntry> {
+        /** The action element. */
+        private final CmsJspActionElement cms;
+        /** Sort by ascending start time? */
+        private final boolean ascending;
+        /** The time frame start to source events from. */
+        private final long sourceStart;
+        /** The time frame end to source events from. */
+        private final long sourceEnd;
+        /** The records yet to be evaluated, ordered by start time. */
+        private final List<EventRecord> records;
+        /** The index of the next record to evaluate. */
+        private int nextRecord = 0;
+        /** Streams of matching events that are not yet returned, ordered by their head event. */
+        private final PriorityQueue<Occurrences> pending;
+        /** The returned events that share the start time of the last returned event (used for duplicate checks). */
+        private final List<EventEntry> returnedWithSameStart = new ArrayList<EventEntry>();
+        /** The next event to return, if already found. */
+        private EventEntry next = null;
+        /** The number of events returned so far. */
+        private int returned = 0;
+        
+        /**
+         * Creates a new iterator, reading the event records using the 
+         * collector's current settings.
+         * 
+         * @param cms An initialized CMS action element, holding context, locale, etc.
+         * @throws CmsException If reading the event records fails.
+         */
+        private EventIterator(CmsJspActionElement cms) throws CmsException {
+            this.cms = cms;
+            this.ascending = isAscending();
+            this.sourceStart = getSourceStart();
+            this.sourceEnd = getSourceEnd();
+            final Comparator<EventEntry> comparator = EventCursor.getComparator(ascending);
+            this.pending = new PriorityQueue<Occurrences>(16, new Comparator<Occurrences>() {
+                public int compare(Occurrences o1, Occurrences o2) {
+                    return comparator.compare(o1.head, o2.head);
+                }
+            });
+            this.records = new ArrayList<EventRecord>();
             
-            // Create the EventEntry instance
-            EventEntry event = new EventEntry(cms, res);
-            // Get recurrences inside the specified timeframe, or - if 
-            // recurrences are not to be included - just create an empty list
-            List<EventEntry> eventAndRecurrences = data.isIncludeRecurrences() ? 
-                    event.getRecurrences(data.getTimeFrameStart(), data.getTimeFrameEnd())
-                    : new ArrayList<EventEntry>();
-            
-            // Add the original event at the head of the list (index zero)
-            eventAndRecurrences.add(0, event);
-            
-            // If expired events should be excluded, do an expiration check
-            if (data.isExcludeExpired()) {
-                Iterator<EventEntry> iEvents = eventAndRecurrences.iterator();
-                while (iEvents.hasNext()) {
-                    EventEntry e = iEvents.next();
-                    if (e.isExpired()) {
-                        iEvents.remove(); // Expired event => remove it
-                    }
+            Iterator<EventRecord> iRecords = readRecords(cms, sourceStart, sourceEnd).iterator();
+            while (iRecords.hasNext()) {
+                EventRecord record = iRecords.next();
+                if (!ascending && data.isIncludeRecurrences() && record.hasRecurrenceRule()) {
+                    expand(record);
+                } else {
+                    records.add(record);
                 }
             }
+            Collections.sort(records, new Comparator<EventRecord>() {
+                public int compare(EventRecord r1, EventRecord r2) {
+                    long s1 = ascending ? r1.getStartTime() : r2.getStartTime();
+                    long s2 = ascending ? r2.getStartTime() : r1.getStartTime();
+                    return s1 < s2 ? -1 : (s1 > s2 ? 1 : 0);
+                }
+            });
+        }
+        
+        /**
+         * A sorted stream of matching events, originating from a single event.
+         */
+        private class Occurrences {
+            /** The event that produced the candidates. */
+            private final EventEntry event;
+            /** The candidates, in sort order. */
+            private final Iterator<EventEntry> candidates;
+            /** The first matching candidate not yet consumed, or <code>null</code> if none. */
+            private EventEntry head = null;
             
+            /**
+             * Creates a new stream of the matching candidates.
+             * 
+             * @param event The event that produced the candidates.
+             * @param candidates The candidates, in sort order.
+             */
+            private Occurrences(EventEntry event, Iterator<EventEntry> candidates) {
+                this.event = event;
+                this.candidates = candidates;
+                advance();
+            }
             
-            if (!event.hasEndTime()) {
-                //
-                // Handle case "only start time set, no end time"
-                //
-                
-                Iterator<EventEntry> iEvents = eventAndRecurrences.iterator();
-                while (iEvents.hasNext()) {
-                    EventEntry e = iEvents.next();
-                    if (e.startsInRange(data.getTimeFrameStart(), data.getTimeFrameEnd())) { // If the start time is inside the timerange ...
-                        events.add(e);
+            /**
+             * Moves the head to the next matching candidate.
+             * 
+             * @return True if a matching candidate was found, false if this stream is exhausted.
+             */
+            private boolean advance() {
+                head = null;
+                while (candidates.hasNext()) {
+                    EventEntry e = candidates.next();
+                    if (isMatching(event, e)
+                            && (cursor == null || cursor.precedes(e, ascending))) {
+                        head = e;
+                        return true;
                     }
                 }
-            } else { 
-                //
-                // Handle case "both start time and end time set"
-                //
-                
-                if (data.isOverlapLenient()) {
-                    // Lenient mode - keep any event that overlaps the time frame:
-                    Iterator<EventEntry> iEvents = eventAndRecurrences.iterator();
-                    while (iEvents.hasNext()) {
-                        EventEntry e = iEvents.next();
-                        if (e.overlapsRange(data.getTimeFrameStart(), data.getTimeFrameEnd())) { // If the event overlaps the time frame ...
-                            events.add(e);
-                        }
-                    }
+                return false;
+            }
+        }
+        
+        /**
+         * Adds the given stream to the pending queue, unless it is exhausted.
+         * 
+         * @param occurrences The stream to add.
+         */
+        private void offer(Occurrences occurrences) {
+            if (occurrences.head != null) {
+                pending.add(occurrences);
+            }
+        }
+        
+        /**
+         * Evaluates the given record, and adds streams of any matching events 
+         * to the pending queue.
+         * 
+         * @param record The record to evaluate.
+         */
+        private void expand(EventRecord record) {
+            EventEntry event = record.toEventEntry(cms);
+            offer(new Occurrences(event, Collections.singletonList(event).iterator()));
+            if (data.isIncludeRecurrences()) {
+                if (ascending) {
+                    // Recurrences are produced in ascending order => merge them lazily
+                    offer(new Occurrences(event, RecurrenceHorizon.iterateRecurrences(event, sourceStart, sourceEnd)));
                 } else {
-                    // Non-lenient mode - keep only events that begin inside the time frame:
-                    Iterator<EventEntry> iEvents = eventAndRecurrences.iterator();
-                    while (iEvents.hasNext()) {
-                        EventEntry e = iEvents.next();
-                        if (e.startsInRange(data.getTimeFrameStart(), data.getTimeFrameEnd())) { // If the event overlaps the time frame ...
-                            events.add(e);
-                        }
+                    for (EventEntry recurrence : RecurrenceHorizon.getRecurrences(event, sourceStart, sourceEnd)) {
+                        offer(new Occurrences(event, Collections.singletonList(recurrence).iterator()));
                     }
                 }
             }
         }
-
-        // Remove duplicates ("kinda costly" ... should fix this...later)
-        List<EventEntry> unique = new ArrayList<EventEntry>();
-        Iterator<EventEntry> iEvents = events.iterator();
-        while (iEvents.hasNext()) {
-            EventEntry e = iEvents.next();
-            if (unique.contains(e)) {
-                iEvents.remove();
-                continue;
+        
+        /**
+         * Finds the next event to return.
+         * 
+         * @return The next event to return, or <code>null</code> if there are no more events.
+         */
+        private EventEntry findNext() {
+            while (true) {
+                // Evaluate records until the head of the queue is guaranteed 
+                // to precede anything the remaining records can produce
+                while (nextRecord < records.size()
+                        && (pending.isEmpty() || !precedesStart(pending.peek().head, records.get(nextRecord)))) {
+                    expand(records.get(nextRecord++));
+                }
+                Occurrences occurrences = pending.poll();
+                if (occurrences == null) {
+                    return null;
+                }
+                EventEntry e = occurrences.head;
+                if (occurrences.advance()) {
+                    pending.add(occurrences);
+                }
+                // Duplicates always share start time, and are returned consecutively
+                if (!returnedWithSameStart.isEmpty() 
+                        && returnedWithSameStart.get(0).getStartTime() != e.getStartTime()) {
+                    returnedWithSameStart.clear();
+                }
+                if (!returnedWithSameStart.contains(e)) {
+                    returnedWithSameStart.add(e);
+                    return e;
+                }
             }
-            unique.add(e);
         }
         
+        /**
+         * Determines if the given event's start time strictly precedes the 
+         * given record's start time, in sort order.
+         * 
+         * @param e The event.
+         * @param record The record.
+         * @return True if the given event's start time strictly precedes the given record's start time.
+         */
+        private boolean precedesStart(EventEntry e, EventRecord record) {
+            return ascending ? 
+                    e.getStartTime() < record.getStartTime() 
+                    : e.getStartTime() > record.getStartTime();
+        }
         
-        //LOG.error("Now " + result.size() + " events remain.");
-        //LOG.error("Filtering events by category ...");
-        
-        // Step 3: Category filtering
-        ResourceCategoriesFilter.filter(events, 
-                              data.getCategories(), 
-                              data.isCategoryInclusive() ? ResourceCategoriesFilter.MODE_INCLUSIVE : ResourceCategoriesFilter.MODE_EXCLUSIVE);
-        /*ResourceCategoriesFilter.filter(cmso, 
-                              result, 
-                              data.getCategories(), 
-                              data.getPropertyCategories().getName(), 
-                              data.isCategoryInclusive() ? ResourceCategoriesFilter.MODE_INCLUSIVE : ResourceCategoriesFilter.MODE_EXCLUSIVE);*/
-        
-        //LOG.error("Now " + result.size() + " events remain.");
-        
+        /**
+         * @see java.util.Iterator#hasNext() 
+         */
+        public boolean hasNext() {
+            if (next == null && (data.getCount() < 0 || returned < data.getCount())) {
+                next = findNext();
+            }
+            return next != null;
+        }
         
-        // Step 4: Sorting
-        Collections.sort(events, data.isSortDescending() ? EventEntry.COMPARATOR_START_TIME : EventEntry.COMPARATOR_START_TIME_DESC);
-        /*
-        // Create a comparator for collector.date (date released can't be used)
-        List<String> datePropertiesForComparison = Arrays.asList(new String[] { EventEntry.PROPERTY_TIME_START });
-        CmsDateResourceComparator dateComparator = new CmsDateResourceComparator(cmso, datePropertiesForComparison, true);
-        if (data.isSortDescending()) {
-            dateComparator = new CmsDateResourceComparator(cmso, datePropertiesForComparison, false);
+        /**
+         * @see java.util.Iterator#next() 
+         */
+        public EventEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            EventEntry e = next;
+            next = null;
+            returned++;
+            return e;
         }
         
-        // Sort results using the defined comparator
-        Collections.sort(result, dateComparator);
-        */
+        /**
+         * Not supported.
+         * 
+         * @throws UnsupportedOperationException Always.
+         */
+        public void remove() {
+            throw new UnsupportedOperationException("Removing collected events is not supported.");
+        }
+    }
+    
+    /**
+     * Gets the executor used for parallel processing, creating it if necessary.
+     * <p>
+     * The executor is shared by all collector instances, and holds a fixed 
+     * number of (daemon) threads, so the total number of threads used for 
+     * parallel processing is bounded, regardless of the number of concurrent 
+     * requests.
+     * 
+     * @return The executor used for parallel processing.
+     */
+    private static synchronized ExecutorService getParallelExecutor() {
+        if (parallelExecutor == null) {
+            parallelExecutor = Executors.newFixedThreadPool(PARALLEL_THREADS, new ThreadFactory() {
+                private int count = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "event-collector-" + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return parallelExecutor;
+    }
+    
+    /**
+     * Shuts down the executor used for parallel processing, if any, so that
+     * its threads are released.
+     * <p>
+     * This must be invoked when the module is shut down, see 
+     * {@link EventCalendarModuleAction}. (Should parallel processing be 
+     * requested afterwards, a new executor is created.)
+     */
+    public static synchronized void shutDownParallelExecutor() {
+        if (parallelExecutor != null) {
+            parallelExecutor.shutdownNow();
+            parallelExecutor = null;
+        }
+    }
+    
+    /**
+     * Does the same as calling 
+     * {@link #addMatchingEvents(no.npolar.common.eventcalendar.EventEntry, java.util.List, long, long)} 
+     * for each of the given records, but processes the records in parallel.
+     * <p>
+     * The records are split into chunks, which are processed by the shared 
+     * executor. The results are merged in chunk order, so the outcome is 
+     * identical to sequential processing. If the chunks are not all done 
+     * within {@link #PARALLEL_TIMEOUT} (e.g. because the executor is busy 
+     * with other requests' chunks), the records are processed sequentially 
+     * instead.
+     * <p>
+     * The action element is used only on the invoking thread: The native 
+     * date formats are resolved up front, per time display mode.
+     * 
+     * @param cms An initialized CMS action element, holding context, locale, etc.
+     * @param records The records to process.
+     * @param events The list to add matching events to.
+     * @param sourceStart The start of the time frame to get recurrences for.
+     * @param sourceEnd The end of the time frame to get recurrences for.
+     */
+    private void addMatchingEventsParallel(CmsJspActionElement cms, 
+                                            List<EventRecord> records, 
+                                            List<EventEntry> events, 
+                                            final long sourceStart, 
+                                            final long sourceEnd) {
+        final Locale locale = cms.getRequestContext().getLocale();
         
-        // Step 5: Update categories in result, and result count
-        setCategories(cmso, events);
-        this.resultsTotal = events.size();
+        // Resolve the native date format pattern for each time display mode
+        final Map<String, String> nativeDateFormatPatterns = new HashMap<String, String>();
+        for (EventRecord record : records) {
+            String timeDisplay = record.getTimeDisplay();
+            if (!nativeDateFormatPatterns.containsKey(timeDisplay)) {
+                String pattern = null;
+                try {
+                    pattern = DateFormatCache.getPattern(cms, timeDisplay);
+                    DateFormatCache.getFormat(pattern, locale, null); // Validate
+                } catch (Exception e) {
+                    pattern = null;
+                    if (LOG.isErrorEnabled()) {
+                        LOG.error("Unable to set native localized date format for event. Fallback to default.", e);
+                    }
+                }
+                nativeDateFormatPatterns.put(timeDisplay, pattern);
+            }
+        }
         
-        // Step 5: result limit
-        return limit(events, data.getCount());
-        //return shrinkToFit(result, data.getCount());
+        int chunkSize = Math.max(PARALLEL_THRESHOLD / 4, (records.size() + (PARALLEL_THREADS * 4) - 1) / (PARALLEL_THREADS * 4));
+        List<Future<List<EventEntry>>> chunks = new ArrayList<Future<List<EventEntry>>>();
+        try {
+            for (int i = 0; i < records.size(); i += chunkSize) {
+                final List<EventRecord> chunk = records.subList(i, Math.min(i + chunkSize, records.size()));
+                chunks.add(getParallelExecutor().submit(new Callable<List<EventEntry>>() {
+                    public List<EventEntry> call() {
+                        List<EventEntry> chunkEvents = new ArrayList<EventEntry>();
+                        for (EventRecord record : chunk) {
+                            EventEntry event = record.toEventEntry(locale);
+                            String pattern = nativeDateFormatPatterns.get(record.getTimeDisplay());
+                            if (pattern != null) {
+                                event.setDateFormat(pattern, locale);
+                            }
+                            addMatchingEvents(event, chunkEvents, sourceStart, sourceEnd);
+                        }
+                        return chunkEvents;
+                    }
+                }));
+            }
+            long deadline = System.currentTimeMillis() + PARALLEL_TIMEOUT;
+            for (Future<List<EventEntry>> chunk : chunks) {
+                events.addAll(chunk.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            }
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Parallel processing of events failed. Falling back to sequential processing.", e);
+            }
+            for (Future<List<EventEntry>> chunk : chunks) {
+                chunk.cancel(true);
+            }
+            events.clear();
+            Iterator<EventRecord> iRecords = records.iterator();
+            while (iRecords.hasNext()) {
+                addMatchingEvents(iRecords.next().toEventEntry(cms), events, sourceStart, sourceEnd);
+            }
+        }
+    }
+    
+    /**
+     * Gets the excluded folders currently configured for this collector, 
+     * compiled for matching against root paths.
+     * <p>
+     * The configured (site path) prefixes are converted to root paths once, 
+     * so that events can be checked using their root path, without 
+     * computing their site path.
+     * 
+     * @param cmso Initialized CmsObject, needed to resolve the site root.
+     * @return The excluded folders currently configured for this collector.
+     */
+    private PathPrefixSet getExcludedFolders(CmsObject cmso) {
+        List<String> rootPaths = new ArrayList<String>(data.getExcludedFolders().size());
+        for (Object excludedFolder : data.getExcludedFolders()) {
+            rootPaths.add(cmso.getRequestContext().addSiteRoot(String.valueOf(excludedFolder)));
+        }
+        return new PathPrefixSet(rootPaths);
+    }
+    
+    /**
+     * Adds the given event, and/or any of its recurrences, to the given list 
+     * of events - if they match the time range and expiration criteria 
+     * currently configured for this collector.
+     * 
+     * @param event The event to evaluate.
+     * @param events The list to add matching events to.
+     * @param sourceStart The start of the time frame to get recurrences for.
+     * @param sourceEnd The end of the time frame to get recurrences for.
+     */
+    private void addMatchingEvents(EventEntry event, List<EventEntry> events, long sourceStart, long sourceEnd) {
+        // Get recurrences inside the specified timeframe, or - if 
+        // recurrences are not to be included - just create an empty list
+        List<EventEntry> eventAndRecurrences = data.isIncludeRecurrences() ? 
+                RecurrenceHorizon.getRecurrences(event, sourceStart, sourceEnd)
+                : new ArrayList<EventEntry>();
+
+        // Add the original event at the head of the list (index zero)
+        eventAndRecurrences.add(0, event);
+
+        for (EventEntry e : eventAndRecurrences) {
+            if (isMatching(event, e)) {
+                events.add(e);
+            }
+        }
+    }
+    
+    /**
+     * Determines if the given event - or recurrence of the given event - 
+     * matches the time range and expiration criteria currently configured for 
+     * this collector.
+     * 
+     * @param event The (original) event.
+     * @param e The event or recurrence to evaluate.
+     * @return True if the given event or recurrence matches, false if not.
+     */
+    private boolean isMatching(EventEntry event, EventEntry e) {
+        // If expired events should be excluded, do an expiration check
+        if (data.isExcludeExpired() && e.isExpired()) {
+            return false; // Expired event
+        }
+        if (event.hasEndTime() && data.isOverlapLenient()) {
+            // Lenient mode - keep any event that overlaps the time frame
+            return e.overlapsRange(data.getTimeFrameStart(), data.getTimeFrameEnd());
+        }
+        // Only start time set, no end time - or non-lenient mode: keep only 
+        // events that begin inside the time frame
+        return e.startsInRange(data.getTimeFrameStart(), data.getTimeFrameEnd());
     }
     
     /**
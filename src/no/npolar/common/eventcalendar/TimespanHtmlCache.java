@@ -0,0 +1,138 @@
+package no.npolar.common.eventcalendar;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.opencms.main.CmsEvent;
+import org.opencms.main.CmsLog;
+import org.opencms.main.I_CmsEventListener;
+import org.opencms.main.OpenCms;
+
+/**
+ * A shared, bounded cache of rendered time span HTML, as produced by
+ * {@link EventEntry#getTimespanHtml(org.opencms.jsp.CmsJspActionElement, java.util.Date)}.
+ * <p>
+ * The rendered HTML depends only on the start and end time, the time display
+ * mode, the time zone, the event and label locales, and whether or not the
+ * event is a "current year" event. All of these are part of the cache key,
+ * so an occurrence is rendered once, and then shared by all list and detail
+ * views, across requests. An event that is changed will have a different
+ * key, so stale fragments are never used; they are simply evicted.
+ * <p>
+ * The least recently used fragments are evicted once the cache holds
+ * {@link #MAX_SIZE} fragments. The cache is cleared whenever caches are
+ * cleared, or a project is published (as the date format labels may have
+ * changed).
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute.
+ */
+public class TimespanHtmlCache {
+
+    /** The maximum number of cached fragments. */
+    public static final int MAX_SIZE = 20000;
+    /** The key separator. */
+    private static final char SEPARATOR = '\n';
+    /** The logger. */
+    private static final Log LOG = CmsLog.getLog(TimespanHtmlCache.class);
+
+    /** The fragments, in access order. */
+    private static final Map<String, String> FRAGMENTS = new LinkedHashMap<String, String>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+    /** Flag indicating whether or not the event listener has been registered. */
+    private static volatile boolean listenerRegistered = false;
+
+    /**
+     * Creates the cache key for the given event's time span HTML.
+     *
+     * @param event The event.
+     * @param labelLocale The locale used to read the date format labels.
+     * @param currentYearEvent Whether or not the event is a "current year" event.
+     * @return The cache key for the given event's time span HTML.
+     */
+    public static String getKey(EventEntry event, Locale labelLocale, boolean currentYearEvent) {
+        return new StringBuilder(96)
+                .append(event.getStartTime()).append(SEPARATOR)
+                .append(event.hasEndTime() ? event.getEndTime() : 0).append(SEPARATOR)
+                .append(event.getTimeDisplayMode()).append(SEPARATOR)
+                .append(event.getTimeZone() == null ? null : event.getTimeZone().getID()).append(SEPARATOR)
+                .append(event.getLocale()).append(SEPARATOR)
+                .append(labelLocale).append(SEPARATOR)
+                .append(currentYearEvent)
+                .toString();
+    }
+
+    /**
+     * Gets the cached fragment for the given key.
+     *
+     * @param key The key, as created by {@link #getKey(no.npolar.common.eventcalendar.EventEntry, java.util.Locale, boolean)}.
+     * @return The cached fragment for the given key, or null if none.
+     */
+    public static String get(String key) {
+        synchronized (FRAGMENTS) {
+            return FRAGMENTS.get(key);
+        }
+    }
+
+    /**
+     * Caches the given fragment.
+     *
+     * @param key The key, as created by {@link #getKey(no.npolar.common.eventcalendar.EventEntry, java.util.Locale, boolean)}.
+     * @param html The rendered fragment.
+     */
+    public static void put(String key, String html) {
+        if (!listenerRegistered) {
+            registerListener();
+        }
+        synchronized (FRAGMENTS) {
+            FRAGMENTS.put(key, html);
+        }
+    }
+
+    /**
+     * Gets the number of cached fragments.
+     *
+     * @return The number of cached fragments.
+     */
+    public static int size() {
+        synchronized (FRAGMENTS) {
+            return FRAGMENTS.size();
+        }
+    }
+
+    /**
+     * Clears the cache.
+     */
+    public static void clear() {
+        synchronized (FRAGMENTS) {
+            FRAGMENTS.clear();
+        }
+    }
+
+    /**
+     * Registers the event listener that clears the cache, unless that has
+     * been done already.
+     */
+    private static synchronized void registerListener() {
+        if (!listenerRegistered) {
+            OpenCms.addCmsEventListener(new I_CmsEventListener() {
+                    public void cmsEvent(CmsEvent event) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Clearing time span HTML cache (" + size() + " fragments).");
+                        }
+                        clear();
+                    }
+                },
+                new int[] {
+                    I_CmsEventListener.EVENT_PUBLISH_PROJECT,
+                    I_CmsEventListener.EVENT_CLEAR_CACHES
+                }
+            );
+            listenerRegistered = true;
+        }
+    }
+}